@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.Mongo;
+
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Feature;
+import de.flapdoodle.embed.mongo.distribution.IFeatureAwareVersion;
+import de.flapdoodle.embed.mongo.distribution.Versions;
+import de.flapdoodle.embed.process.distribution.GenericVersion;
+import de.flapdoodle.embed.process.runtime.Network;
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+import eu.trentorise.smartcampus.profileservice.storage.ProfileIndexBootstrap;
+import eu.trentorise.smartcampus.profileservice.storage.ProfileStorage;
+
+/**
+ * Mongo instance shared by the benchmarks of a fork. A mongod process is
+ * started in a temporary directory, unless an existing instance is given with
+ * the <code>benchmark.mongo.host</code> and <code>benchmark.mongo.port</code>
+ * system properties. The benchmark database is dropped at the end.
+ */
+@State(Scope.Benchmark)
+public class EmbeddedMongo {
+
+	static final String DB = "profileservice-benchmark";
+
+	static final String PROFILE_ID = "preferences";
+
+	static final String[] LANGUAGES = { "it", "en", "de", "fr", "es" };
+
+	/**
+	 * the 2.x server targeted by the Mongo driver in use, declared by number
+	 * as the 2.6 constants of the distribution list are deprecated
+	 */
+	static final IFeatureAwareVersion MONGOD_VERSION = Versions.withFeatures(new GenericVersion("2.6.11"),
+			Feature.SYNC_DELAY);
+
+	private MongodExecutable mongod;
+
+	private Mongo mongo;
+
+	@Setup
+	public void start() throws IOException {
+		String host = System.getProperty("benchmark.mongo.host");
+		int port;
+		if (host == null) {
+			host = "localhost";
+			port = Network.getFreeServerPort();
+			mongod = MongodStarter.getDefaultInstance().prepare(
+					new MongodConfigBuilder().version(MONGOD_VERSION)
+							.net(new Net(port, Network.localhostIsIPv6())).build());
+			mongod.start();
+		} else {
+			port = Integer.getInteger("benchmark.mongo.port", 27017);
+		}
+		mongo = new Mongo(host, port);
+		mongo.dropDatabase(DB);
+	}
+
+	@TearDown
+	public void stop() {
+		mongo.dropDatabase(DB);
+		mongo.close();
+		if (mongod != null) {
+			mongod.stop();
+		}
+	}
+
+	/**
+	 * @return a storage on an empty benchmark database, with the indexes
+	 *         created at startup by the webapp
+	 */
+	ProfileStorage createStorage(String attributeIndexes) throws Exception {
+		mongo.dropDatabase(DB);
+		ProfileStorage storage = new ProfileStorage(new MongoTemplate(mongo, DB));
+		storage.setAttributeIndexes(attributeIndexes);
+		new ProfileIndexBootstrap(storage).afterPropertiesSet();
+		return storage;
+	}
+
+	/**
+	 * Stores a {@link #PROFILE_ID} profile for the users <code>user0</code> to
+	 * <code>user[count-1]</code>
+	 * 
+	 * @return the ids of the users
+	 */
+	static List<String> seed(ProfileStorage storage, int count, int contentSize) throws Exception {
+		List<String> userIds = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			ExtendedProfile profile = profile("user" + i, i, contentSize);
+			storage.storeObject(profile);
+			userIds.add(profile.getUserId());
+		}
+		return userIds;
+	}
+
+	/**
+	 * @return a profile with the indexed attributes <code>lang</code> and
+	 *         <code>city</code> and <code>contentSize</code> further entries
+	 */
+	static ExtendedProfile profile(String userId, int i, int contentSize) {
+		ExtendedProfile profile = new ExtendedProfile();
+		profile.setId(new ObjectId().toString());
+		profile.setUserId(userId);
+		profile.setUser(userId);
+		profile.setProfileId(PROFILE_ID);
+		profile.setUpdateTime(System.currentTimeMillis());
+		Map<String, Object> content = new HashMap<String, Object>();
+		content.put("lang", LANGUAGES[i % LANGUAGES.length]);
+		content.put("city", "city" + (i % 50));
+		content.put("level", i % 10);
+		for (int k = 0; k < contentSize; k++) {
+			content.put("key" + k, "value " + k + " of the profile of " + userId);
+		}
+		profile.setContent(content);
+		return profile;
+	}
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.util.ReflectionUtils;
+
+import eu.trentorise.smartcampus.profileservice.controllers.rest.ExtendedProfileController;
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfiles;
+import eu.trentorise.smartcampus.profileservice.storage.ProfileStorage;
+
+/**
+ * Profile reads on a seeded collection: single profile lookup, attribute
+ * search on indexed and not indexed attributes, and the bulk read of
+ * <code>/extprofile/all</code> for an increasing number of users
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProfileStorageBenchmark {
+
+	@Param({ "10000" })
+	public int profiles;
+
+	@Param({ "20" })
+	public int contentSize;
+
+	@Param({ "1", "10", "100", "1000" })
+	public int userIds;
+
+	private ProfileStorage storage;
+
+	private AllProfilesController controller;
+
+	private List<String> users;
+
+	private final Random random = new Random(42);
+
+	@Setup
+	public void setup(EmbeddedMongo mongo) throws Exception {
+		storage = mongo.createStorage(EmbeddedMongo.PROFILE_ID + ":lang");
+		users = EmbeddedMongo.seed(storage, profiles, contentSize);
+		controller = new AllProfilesController(storage);
+	}
+
+	@Benchmark
+	public ExtendedProfile findExtendedProfile() {
+		return storage.findExtendedProfile(randomUser(), EmbeddedMongo.PROFILE_ID);
+	}
+
+	@Benchmark
+	public List<ExtendedProfile> findExtendedProfilesIndexed() {
+		String lang = EmbeddedMongo.LANGUAGES[random.nextInt(EmbeddedMongo.LANGUAGES.length)];
+		return storage.findExtendedProfiles(EmbeddedMongo.PROFILE_ID,
+				Collections.<String, Object> singletonMap("lang", lang));
+	}
+
+	@Benchmark
+	public List<ExtendedProfile> findExtendedProfilesNotIndexed() {
+		Map<String, Object> attrs = Collections.<String, Object> singletonMap("city", "city" + random.nextInt(50));
+		return storage.findExtendedProfiles(EmbeddedMongo.PROFILE_ID, attrs);
+	}
+
+	@Benchmark
+	public ExtendedProfiles getAllProfiles() {
+		List<String> ids = new ArrayList<String>(userIds);
+		int from = random.nextInt(users.size());
+		for (int i = 0; i < userIds; i++) {
+			ids.add(users.get((from + i) % users.size()));
+		}
+		return controller.getAllProfiles(ids);
+	}
+
+	private String randomUser() {
+		return users.get(random.nextInt(users.size()));
+	}
+
+	/**
+	 * Exposes the bulk read of the controller
+	 */
+	private static class AllProfilesController extends ExtendedProfileController {
+
+		/** fails on any status set by the controller */
+		private static final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+				HttpServletResponse.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("setStatus")) {
+							throw new IllegalStateException("getAllProfiles failed with status " + args[0]);
+						}
+						return null;
+					}
+				});
+
+		AllProfilesController(ProfileStorage storage) {
+			ReflectionUtils.setField(ReflectionUtils.findField(ExtendedProfileController.class, "storage"), this,
+					storage);
+		}
+
+		ExtendedProfiles getAllProfiles(List<String> userIds) {
+			return getAllProfiles(response, userIds, EmbeddedMongo.PROFILE_ID);
+		}
+	}
+}
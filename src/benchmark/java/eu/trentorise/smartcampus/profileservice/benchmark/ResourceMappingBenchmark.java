@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.AntPathMatcher;
+
+import eu.trentorise.smartcampus.profileservice.security.ResourceMappingMatcher;
+import eu.trentorise.smartcampus.profileservice.security.ResourceMappingMatcher.Mapping;
+
+/**
+ * Scope resolution of the request paths with the precompiled trie against a
+ * scan of the mappings with pattern matching, as done by the resource filter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResourceMappingBenchmark {
+
+	private static final String[][] REQUESTS = {
+			{ "GET", "/extprofile/me" },
+			{ "GET", "/extprofile/me/preferences" },
+			{ "PUT", "/extprofile/me/preferences" },
+			{ "GET", "/extprofile/app/123456/preferences" },
+			{ "GET", "/extprofile/all/preferences" },
+			{ "GET", "/extprofile/shared/preferences" },
+			{ "POST", "/extprofile/batch" },
+			{ "GET", "/extprofile/unmapped/path" } };
+
+	private ResourceMappingMatcher matcher;
+
+	private List<Mapping> mappings;
+
+	private AntPathMatcher antMatcher;
+
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+		matcher = new ResourceMappingMatcher(new ClassPathResource("resourceList.xml"));
+		mappings = matcher.getMappings();
+		antMatcher = new AntPathMatcher();
+	}
+
+	private String[] nextRequest() {
+		next = (next + 1) % REQUESTS.length;
+		return REQUESTS[next];
+	}
+
+	@Benchmark
+	public String trie() {
+		String[] request = nextRequest();
+		return matcher.resolveScope(request[0], request[1]);
+	}
+
+	@Benchmark
+	public String patternScan() {
+		String[] request = nextRequest();
+		for (Mapping mapping : mappings) {
+			if ((mapping.getMethods().isEmpty() || mapping.getMethods().contains(request[0]))
+					&& antMatcher.match(mapping.getPathPattern(), request[1])) {
+				String uri = mapping.getUri();
+				Map<String, String> variables = antMatcher.extractUriTemplateVariables(mapping.getPathPattern(),
+						request[1]);
+				for (Map.Entry<String, String> variable : variables.entrySet()) {
+					uri = uri.replace("{" + variable.getKey() + "}", variable.getValue());
+				}
+				return uri;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfiles;
+
+/**
+ * JSON serialization of {@link ExtendedProfiles} responses, with the object
+ * mapper configuration of the message converter, for growing content maps
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+
+	@Param({ "100" })
+	public int profiles;
+
+	@Param({ "10", "100", "1000" })
+	public int contentSize;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private ExtendedProfiles response;
+
+	private final CountingOutputStream out = new CountingOutputStream();
+
+	@Setup
+	public void setup() {
+		List<ExtendedProfile> list = new ArrayList<ExtendedProfile>(profiles);
+		for (int i = 0; i < profiles; i++) {
+			list.add(EmbeddedMongo.profile("user" + i, i, contentSize));
+		}
+		response = new ExtendedProfiles();
+		response.setProfiles(list);
+	}
+
+	@Benchmark
+	public long serialize() throws IOException {
+		out.count = 0;
+		mapper.writeValue(out, response);
+		return out.count;
+	}
+
+	/**
+	 * Discards the output, keeping only its size
+	 */
+	private static class CountingOutputStream extends OutputStream {
+
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
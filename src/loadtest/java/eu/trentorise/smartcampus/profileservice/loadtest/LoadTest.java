@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.loadtest;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.mongodb.Mongo;
+
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Feature;
+import de.flapdoodle.embed.mongo.distribution.Versions;
+import de.flapdoodle.embed.process.distribution.GenericVersion;
+import de.flapdoodle.embed.process.runtime.Network;
+import eu.trentorise.smartcampus.profileservice.loadtest.TrafficMix.Template;
+
+/**
+ * Offline load test of the webapp. Boots it in-process with an embedded
+ * mongod and stand-ins for the social engine and the token store, creates a
+ * profile for each test user, then replays the traffic mix from concurrent
+ * threads and reports throughput and p50/p99 latency of every request type.
+ * 
+ * Configured with system properties:
+ * <ul>
+ * <li>loadtest.webapp: webapp directory (src/main/webapp)</li>
+ * <li>loadtest.traffic: classpath traffic mix (loadtest/traffic.txt)</li>
+ * <li>loadtest.users: test users (1000)</li>
+ * <li>loadtest.profiles: comma separated profileIds (preferences)</li>
+ * <li>loadtest.threads: concurrent clients (16)</li>
+ * <li>loadtest.warmup, loadtest.duration: seconds (10, 60)</li>
+ * <li>loadtest.social.latency, loadtest.social.jitter: ms (20, 10)</li>
+ * <li>loadtest.social.failureRate: 0 to 1 (0)</li>
+ * <li>loadtest.mongo.host, loadtest.mongo.port: existing Mongo to use
+ * instead of the embedded one</li>
+ * </ul>
+ */
+public class LoadTest {
+
+	private static final String DB = "profileservice-loadtest";
+
+	private final WebappHarness webapp;
+
+	private final TrafficMix mix;
+
+	private final List<String> users = new ArrayList<String>();
+
+	private final Map<String, String> tokens = new HashMap<String, String>();
+
+	private final List<String> profileIds;
+
+	public LoadTest(WebappHarness webapp, TrafficMix mix, List<String> profileIds) {
+		this.webapp = webapp;
+		this.mix = mix;
+		this.profileIds = profileIds;
+	}
+
+	public static void main(String[] args) throws Exception {
+		MongodExecutable mongod = null;
+		String host = System.getProperty("loadtest.mongo.host");
+		int port;
+		if (host == null) {
+			host = "localhost";
+			port = Network.getFreeServerPort();
+			mongod = MongodStarter.getDefaultInstance().prepare(
+					new MongodConfigBuilder()
+							.version(Versions.withFeatures(new GenericVersion("2.6.11"), Feature.SYNC_DELAY))
+							.net(new Net(port, Network.localhostIsIPv6())).build());
+			mongod.start();
+		} else {
+			port = Integer.getInteger("loadtest.mongo.port", 27017);
+		}
+		Mongo mongo = new Mongo(host, port);
+		mongo.dropDatabase(DB);
+
+		// the placeholders of the webapp contexts resolve system properties first
+		System.setProperty("smartcampus.vas.web.mongo.host", host);
+		System.setProperty("smartcampus.vas.web.mongo.port", String.valueOf(port));
+		System.setProperty("smartcampus.vas.web.mongo.db", DB);
+		System.setProperty("profileservice.social.async", "false");
+
+		WebappHarness webapp = new WebappHarness(System.getProperty("loadtest.webapp", "src/main/webapp"));
+		InputStream in = new ClassPathResource(System.getProperty("loadtest.traffic", "loadtest/traffic.txt"))
+				.getInputStream();
+		TrafficMix mix;
+		try {
+			mix = new TrafficMix(in);
+		} finally {
+			in.close();
+		}
+		try {
+			webapp.start();
+			LoadTest test = new LoadTest(webapp, mix, Arrays.asList(System.getProperty("loadtest.profiles",
+					"preferences").split(",")));
+			test.setup(Integer.getInteger("loadtest.users", 1000));
+			int threads = Integer.getInteger("loadtest.threads", 16);
+			test.run(threads, Integer.getInteger("loadtest.warmup", 10) * 1000L);
+			Results results = test.run(threads, Integer.getInteger("loadtest.duration", 60) * 1000L);
+			results.print(System.out);
+			RemoteStandIn social = webapp.getDispatcherContext().getBean(SocialEngineStandIn.class).getStandIn();
+			System.out.println(String.format("%s calls %d, injected failures %d", social.getName(),
+					social.getCalls(), social.getFailures()));
+		} finally {
+			webapp.stop();
+			mongo.dropDatabase(DB);
+			mongo.close();
+			if (mongod != null) {
+				mongod.stop();
+			}
+		}
+	}
+
+	/**
+	 * Issues the tokens of the users and creates their profiles
+	 */
+	public void setup(int userCount) throws Exception {
+		for (int i = 0; i < userCount; i++) {
+			String userId = String.valueOf(i + 1);
+			users.add(userId);
+			tokens.put(userId, webapp.issueToken(userId));
+			for (String profileId : profileIds) {
+				MockHttpServletResponse response = webapp.service(request(new Template(null, "POST", "/extprofile/me/"
+						+ profileId, "{\"lang\":\"it\",\"seq\":" + i + "}"), userId, new Random()));
+				if (response.getStatus() >= 400) {
+					throw new IllegalStateException("Profile creation failed with status " + response.getStatus());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replays the traffic mix from the given number of threads
+	 */
+	public Results run(int threads, final long millis) throws InterruptedException {
+		final Results results = new Results();
+		final CountDownLatch done = new CountDownLatch(threads);
+		final long end = System.currentTimeMillis() + millis;
+		for (int t = 0; t < threads; t++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random();
+					Map<String, Samples> samples = new HashMap<String, Samples>();
+					try {
+						while (System.currentTimeMillis() < end) {
+							Template template = mix.next(random);
+							String userId = users.get(random.nextInt(users.size()));
+							MockHttpServletRequest request = request(template, userId, random);
+							boolean error;
+							long start = System.nanoTime();
+							try {
+								error = webapp.service(request).getStatus() >= 500;
+							} catch (Exception e) {
+								error = true;
+							}
+							long elapsed = System.nanoTime() - start;
+							Samples s = samples.get(template.getName());
+							if (s == null) {
+								s = new Samples();
+								samples.put(template.getName(), s);
+							}
+							s.add(elapsed, error);
+						}
+					} finally {
+						results.merge(samples);
+						done.countDown();
+					}
+				}
+			}, "loadtest-" + t);
+			thread.start();
+		}
+		done.await();
+		results.millis = millis;
+		return results;
+	}
+
+	private MockHttpServletRequest request(Template template, String userId, Random random) {
+		String method = template.getMethod();
+		MockHttpServletRequest request = webapp.request("PATCH".equals(method) ? "POST" : method, "");
+		if ("PATCH".equals(method)) {
+			request.addHeader("X-HTTP-Method-Override", "PATCH");
+		}
+		String path = expand(template.getPath(), userId, random);
+		int query = path.indexOf('?');
+		if (query >= 0) {
+			for (String param : path.substring(query + 1).split("&")) {
+				int eq = param.indexOf('=');
+				request.addParameter(param.substring(0, eq), param.substring(eq + 1));
+			}
+			path = path.substring(0, query);
+		}
+		request.setRequestURI(path);
+		request.addHeader("Authorization", "Bearer " + tokens.get(userId));
+		request.addHeader("Accept", "application/json");
+		if (template.getBody() != null) {
+			request.setContentType("application/json");
+			try {
+				request.setContent(expand(template.getBody(), userId, random).getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return request;
+	}
+
+	private String expand(String text, String userId, Random random) {
+		if (text.indexOf('{') < 0) return text;
+		StringBuilder ids = new StringBuilder();
+		if (text.contains("{users}")) {
+			for (int i = 0; i < 20; i++) {
+				if (i > 0) ids.append(',');
+				ids.append(users.get(random.nextInt(users.size())));
+			}
+		}
+		return text.replace("{user}", userId).replace("{users}", ids)
+				.replace("{profile}", profileIds.get(random.nextInt(profileIds.size())))
+				.replace("{since}", String.valueOf(System.currentTimeMillis() - 60000));
+	}
+
+	/**
+	 * Latencies of a request type, in nanoseconds
+	 */
+	static class Samples {
+
+		private long[] values = new long[1024];
+
+		private int size;
+
+		private int errors;
+
+		void add(long nanos, boolean error) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = nanos;
+			if (error) errors++;
+		}
+
+		void addAll(Samples other) {
+			for (int i = 0; i < other.size; i++) {
+				add(other.values[i], false);
+			}
+			errors += other.errors;
+		}
+
+		/**
+		 * @return the given percentile in milliseconds, sorting the values
+		 */
+		double percentile(double p) {
+			Arrays.sort(values, 0, size);
+			int index = (int) Math.ceil(p / 100 * size) - 1;
+			return values[Math.max(0, Math.min(index, size - 1))] / 1e6;
+		}
+	}
+
+	static class Results {
+
+		private final Map<String, Samples> byName = new TreeMap<String, Samples>();
+
+		private long millis;
+
+		synchronized void merge(Map<String, Samples> samples) {
+			for (Map.Entry<String, Samples> e : samples.entrySet()) {
+				Samples s = byName.get(e.getKey());
+				if (s == null) {
+					s = new Samples();
+					byName.put(e.getKey(), s);
+				}
+				s.addAll(e.getValue());
+			}
+		}
+
+		void print(PrintStream out) {
+			Samples total = new Samples();
+			out.println(String.format("%-32s %10s %8s %10s %10s %10s", "request", "count", "errors", "req/s",
+					"p50 ms", "p99 ms"));
+			for (Map.Entry<String, Samples> e : byName.entrySet()) {
+				print(out, e.getKey(), e.getValue());
+				total.addAll(e.getValue());
+			}
+			print(out, "TOTAL", total);
+		}
+
+		private void print(PrintStream out, String name, Samples s) {
+			if (s.size == 0) return;
+			out.println(String.format("%-32s %10d %8d %10.1f %10.2f %10.2f", name, s.size, s.errors, s.size
+					* 1000.0 / millis, s.percentile(50), s.percentile(99)));
+		}
+	}
+}
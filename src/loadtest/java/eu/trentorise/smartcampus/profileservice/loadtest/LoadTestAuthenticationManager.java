@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.loadtest;
+
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+
+/**
+ * Authenticates the access tokens issued by the harness, replacing the
+ * resource authentication manager of the webapp. The token store lookup is
+ * kept, the checks of the token scopes against the resource mappings are
+ * not.
+ */
+public class LoadTestAuthenticationManager implements AuthenticationManager {
+
+	private final TokenStore tokenStore;
+
+	public LoadTestAuthenticationManager(TokenStore tokenStore) {
+		this.tokenStore = tokenStore;
+	}
+
+	@Override
+	public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+		String token = String.valueOf(authentication.getPrincipal());
+		OAuth2Authentication auth = tokenStore.readAuthentication(token);
+		if (auth == null || tokenStore.readAccessToken(token) == null) {
+			throw new BadCredentialsException("Invalid token: " + token);
+		}
+		return auth;
+	}
+}
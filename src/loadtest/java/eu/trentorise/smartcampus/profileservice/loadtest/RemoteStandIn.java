@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.loadtest;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.cglib.proxy.Callback;
+import net.sf.cglib.proxy.Enhancer;
+import net.sf.cglib.proxy.Factory;
+import net.sf.cglib.proxy.MethodInterceptor;
+import net.sf.cglib.proxy.MethodProxy;
+
+import org.objenesis.ObjenesisStd;
+
+/**
+ * Stand-in of a remote service client: every call waits the configured
+ * latency, fails with the given probability and otherwise returns a
+ * generated value of the declared type. Beans returned get a fresh id in
+ * each of their <code>Long</code> id properties, collections are empty.
+ */
+public class RemoteStandIn implements InvocationHandler, MethodInterceptor {
+
+	private final String name;
+
+	private final long latency;
+
+	private final long jitter;
+
+	private final double failureRate;
+
+	private final Random random = new Random();
+
+	private final AtomicLong ids = new AtomicLong(1000);
+
+	private final AtomicLong calls = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            name of the service, used in the reports
+	 * @param latency
+	 *            milliseconds waited by every call
+	 * @param jitter
+	 *            max random milliseconds added to the latency
+	 * @param failureRate
+	 *            probability of a call to fail, between 0 and 1
+	 */
+	public RemoteStandIn(String name, long latency, long jitter, double failureRate) {
+		this.name = name;
+		this.latency = latency;
+		this.jitter = jitter;
+		this.failureRate = failureRate;
+	}
+
+	/**
+	 * @return an instance of the given interface or class answering through
+	 *         the stand-in; classes are instantiated without calling their
+	 *         constructors
+	 */
+	public <T> T create(Class<T> type) {
+		if (type.isInterface()) {
+			return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, this));
+		}
+		Enhancer enhancer = new Enhancer();
+		enhancer.setSuperclass(type);
+		enhancer.setCallbackType(MethodInterceptor.class);
+		Factory instance = (Factory) new ObjenesisStd().newInstance(enhancer.createClass());
+		instance.setCallbacks(new Callback[] { this });
+		return type.cast(instance);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getCalls() {
+		return calls.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	@Override
+	public Object intercept(Object obj, Method method, Object[] args, MethodProxy proxy) throws Throwable {
+		return invoke(obj, method, args);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			if (method.getName().equals("equals")) return proxy == args[0];
+			if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+			return "stand-in of " + name;
+		}
+		calls.incrementAndGet();
+		long wait = latency + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+		if (wait > 0) {
+			Thread.sleep(wait);
+		}
+		if (failureRate > 0 && random.nextDouble() < failureRate) {
+			failures.incrementAndGet();
+			throw failure(method);
+		}
+		return value(method.getReturnType());
+	}
+
+	/**
+	 * @return the first checked exception declared by the method, a runtime
+	 *         exception if none can be created
+	 */
+	private Throwable failure(Method method) {
+		String msg = "Injected failure of " + name + "." + method.getName();
+		for (Class<?> type : method.getExceptionTypes()) {
+			try {
+				Constructor<?> constructor = type.getConstructor(String.class);
+				return (Throwable) constructor.newInstance(msg);
+			} catch (Exception e) {
+				// try the next one
+			}
+		}
+		return new IllegalStateException(msg);
+	}
+
+	private Object value(Class<?> type) {
+		if (type == Void.TYPE) return null;
+		if (type == Boolean.TYPE || type == Boolean.class) return Boolean.TRUE;
+		if (type == Long.TYPE || type == Long.class) return ids.incrementAndGet();
+		if (type == Integer.TYPE || type == Integer.class) return (int) ids.incrementAndGet();
+		if (type == String.class) return String.valueOf(ids.incrementAndGet());
+		if (type.isPrimitive()) return null;
+		if (type.isAssignableFrom(ArrayList.class)) return new ArrayList<Object>();
+		if (type.isAssignableFrom(HashSet.class)) return new HashSet<Object>();
+		if (type.isAssignableFrom(HashMap.class)) return new HashMap<Object, Object>();
+		try {
+			Object bean = type.getDeclaredConstructor().newInstance();
+			for (Method setter : type.getMethods()) {
+				if (setter.getName().startsWith("set") && setter.getName().endsWith("Id")
+						&& setter.getParameterTypes().length == 1
+						&& (setter.getParameterTypes()[0] == Long.class || setter.getParameterTypes()[0] == Long.TYPE)) {
+					setter.invoke(bean, ids.incrementAndGet());
+				}
+			}
+			return bean;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
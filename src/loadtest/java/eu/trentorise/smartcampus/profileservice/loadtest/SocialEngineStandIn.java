@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.loadtest;
+
+import it.unitn.disi.sweb.webapi.client.smartcampus.SCWebApiClient;
+
+import java.lang.reflect.Field;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.util.ReflectionUtils;
+
+import eu.trentorise.smartcampus.social.SocialEngineConnector;
+
+/**
+ * Replaces the social engine client of every {@link SocialEngineConnector}
+ * bean with a {@link RemoteStandIn}, before and after their initialization
+ */
+public class SocialEngineStandIn implements BeanPostProcessor {
+
+	private final RemoteStandIn standIn;
+
+	private final SCWebApiClient client;
+
+	private final Field clientField = ReflectionUtils.findField(SocialEngineConnector.class, "socialEngineClient");
+
+	public SocialEngineStandIn(RemoteStandIn standIn) {
+		this.standIn = standIn;
+		this.client = standIn.create(SCWebApiClient.class);
+		ReflectionUtils.makeAccessible(clientField);
+	}
+
+	public RemoteStandIn getStandIn() {
+		return standIn;
+	}
+
+	@Override
+	public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+		return replaceClient(bean);
+	}
+
+	@Override
+	public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+		return replaceClient(bean);
+	}
+
+	private Object replaceClient(Object bean) {
+		if (bean instanceof SocialEngineConnector) {
+			ReflectionUtils.setField(clientField, bean, client);
+		}
+		return bean;
+	}
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Weighted request templates, read from a file with a template per line:
+ * 
+ * <pre>
+ * weight name METHOD path [body]
+ * </pre>
+ * 
+ * Path and body may contain the placeholders <code>{user}</code> (the user
+ * sending the request), <code>{users}</code> (comma separated user ids),
+ * <code>{profile}</code> (a profileId) and <code>{since}</code> (one minute
+ * ago). The method <code>PATCH</code> is sent as a POST with the
+ * <code>X-HTTP-Method-Override</code> header. Empty lines and lines starting
+ * with # are skipped.
+ */
+public class TrafficMix {
+
+	private final List<Template> templates = new ArrayList<Template>();
+
+	private int totalWeight;
+
+	public TrafficMix(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) continue;
+			String[] parts = line.split("\\s+", 5);
+			if (parts.length < 4) {
+				throw new IllegalArgumentException("Invalid traffic line: " + line);
+			}
+			Template template = new Template(parts[1], parts[2], parts[3], parts.length > 4 ? parts[4] : null);
+			totalWeight += Integer.parseInt(parts[0]);
+			template.upTo = totalWeight;
+			templates.add(template);
+		}
+		if (templates.isEmpty()) {
+			throw new IllegalArgumentException("Empty traffic mix");
+		}
+	}
+
+	/**
+	 * @return a template chosen according to the weights
+	 */
+	public Template next(Random random) {
+		int n = random.nextInt(totalWeight);
+		for (Template template : templates) {
+			if (n < template.upTo) return template;
+		}
+		return templates.get(templates.size() - 1);
+	}
+
+	public List<Template> getTemplates() {
+		return Collections.unmodifiableList(templates);
+	}
+
+	public static class Template {
+
+		private final String name;
+
+		private final String method;
+
+		private final String path;
+
+		private final String body;
+
+		private int upTo;
+
+		Template(String name, String method, String path, String body) {
+			this.name = name;
+			this.method = method;
+			this.path = path;
+			this.body = body;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public String getBody() {
+			return body;
+		}
+	}
+}
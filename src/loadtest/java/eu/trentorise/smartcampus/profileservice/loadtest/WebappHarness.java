@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.loadtest;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.springframework.core.io.FileSystemResourceLoader;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletConfig;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+import org.springframework.web.context.ContextLoaderListener;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+import org.springframework.web.filter.DelegatingFilterProxy;
+import org.springframework.web.servlet.DispatcherServlet;
+
+/**
+ * The webapp booted in-process as declared in web.xml: root context, metrics
+ * and security filters, dispatcher servlet. Each context is extended with an
+ * override file replacing the remote services with stand-ins; requests are
+ * served on the calling thread.
+ */
+public class WebappHarness {
+
+	private final MockServletContext servletContext;
+
+	private final ContextLoaderListener listener = new ContextLoaderListener();
+
+	private final DispatcherServlet dispatcher = new DispatcherServlet();
+
+	private final List<Filter> filters;
+
+	private WebApplicationContext rootContext;
+
+	/**
+	 * @param webappDir
+	 *            directory of the webapp sources, i.e. src/main/webapp
+	 */
+	public WebappHarness(String webappDir) {
+		servletContext = new MockServletContext(webappDir, new FileSystemResourceLoader());
+		filters = Arrays.<Filter> asList(new DelegatingFilterProxy(), new DelegatingFilterProxy());
+	}
+
+	public void start() throws ServletException {
+		servletContext.addInitParameter(ContextLoaderListener.CONFIG_LOCATION_PARAM,
+				"/WEB-INF/spring/spring-security.xml classpath:loadtest/root-overrides.xml");
+		listener.contextInitialized(new ServletContextEvent(servletContext));
+		rootContext = WebApplicationContextUtils.getRequiredWebApplicationContext(servletContext);
+
+		filters.get(0).init(new MockFilterConfig(servletContext, "requestMetricsFilter"));
+		filters.get(1).init(new MockFilterConfig(servletContext, "springSecurityFilterChain"));
+
+		MockServletConfig config = new MockServletConfig(servletContext, "SpringAppDispatcher");
+		config.addInitParameter("contextConfigLocation",
+				"/WEB-INF/spring/SpringAppDispatcher-servlet.xml classpath:loadtest/dispatcher-overrides.xml");
+		dispatcher.init(config);
+	}
+
+	public void stop() {
+		dispatcher.destroy();
+		for (Filter filter : filters) {
+			filter.destroy();
+		}
+		listener.contextDestroyed(new ServletContextEvent(servletContext));
+	}
+
+	/**
+	 * @return a request to the webapp, to be completed and passed to
+	 *         {@link #service(MockHttpServletRequest)}
+	 */
+	public MockHttpServletRequest request(String method, String uri) {
+		MockHttpServletRequest request = new MockHttpServletRequest(servletContext, method, uri);
+		request.setRemoteAddr("127.0.0.1");
+		return request;
+	}
+
+	/**
+	 * Serves the request through the filters and the dispatcher
+	 */
+	public MockHttpServletResponse service(MockHttpServletRequest request) throws IOException, ServletException {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		new Chain().doFilter(request, response);
+		return response;
+	}
+
+	/**
+	 * Stores in the token store of the webapp an access token of the user
+	 * 
+	 * @return the token value
+	 */
+	public String issueToken(String userId) {
+		DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken("loadtest-" + userId);
+		token.setScope(Collections.<String> emptySet());
+		OAuth2Authentication auth = new OAuth2Authentication(new DefaultAuthorizationRequest("loadtest",
+				Collections.<String> emptySet()), new UsernamePasswordAuthenticationToken(userId, "",
+				Collections.singletonList(new SimpleGrantedAuthority("ROLE_USER"))));
+		rootContext.getBean("loadTestTokenStore", TokenStore.class).storeAccessToken(token, auth);
+		return token.getValue();
+	}
+
+	public WebApplicationContext getRootContext() {
+		return rootContext;
+	}
+
+	public WebApplicationContext getDispatcherContext() {
+		return dispatcher.getWebApplicationContext();
+	}
+
+	private class Chain implements FilterChain {
+
+		private int next;
+
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response) throws IOException,
+				ServletException {
+			if (next < filters.size()) {
+				filters.get(next++).doFilter(request, response, this);
+			} else {
+				dispatcher.service(request, response);
+			}
+		}
+	}
+}
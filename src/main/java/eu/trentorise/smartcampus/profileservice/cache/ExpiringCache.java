@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.cache;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache with LRU eviction and a fixed time to live for the
+ * entries. Null values are allowed.
+ * 
+ * @param <K>
+ * @param <V>
+ */
+public class ExpiringCache<K, V> {
+
+	private final int maxSize;
+
+	private final long ttl;
+
+	private final LinkedHashMap<K, Entry<V>> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private volatile RemovalListener<K, V> removalListener;
+
+	/**
+	 * @param maxSize
+	 *            max number of entries, the least recently used entries are
+	 *            evicted first
+	 * @param ttl
+	 *            time to live of the entries in milliseconds
+	 */
+	public ExpiringCache(int maxSize, long ttl) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				if (size() > ExpiringCache.this.maxSize) {
+					evictions.incrementAndGet();
+					removed(eldest.getKey(), eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param removalListener
+	 *            notified of the values leaving the cache, null for none
+	 */
+	public void setRemovalListener(RemovalListener<K, V> removalListener) {
+		this.removalListener = removalListener;
+	}
+
+	/**
+	 * @return the entry stored for the key if not expired, null otherwise.
+	 *         Lookups are counted as hits or misses.
+	 */
+	public Entry<V> getEntry(K key) {
+		return getEntry(key, false);
+	}
+
+	/**
+	 * @param allowExpired
+	 *            if true an expired entry is returned and kept in the cache,
+	 *            the caller is expected to refresh it
+	 * @return the entry stored for the key, null if missing or expired and
+	 *         expired entries are not allowed. Lookups are counted as hits or
+	 *         misses.
+	 */
+	public synchronized Entry<V> getEntry(K key, boolean allowExpired) {
+		Entry<V> entry = entries.get(key);
+		if (entry != null && !allowExpired && entry.isExpired()) {
+			entries.remove(key);
+			evictions.incrementAndGet();
+			removed(key, entry);
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * @return the value stored for the key if not expired, null otherwise
+	 */
+	public V get(K key) {
+		Entry<V> entry = getEntry(key);
+		return entry == null ? null : entry.getValue();
+	}
+
+	/**
+	 * @return the entry stored for the key even if expired, without updating
+	 *         the statistics
+	 */
+	public synchronized Entry<V> peek(K key) {
+		return entries.get(key);
+	}
+
+	public synchronized void put(K key, V value) {
+		put(key, value, ttl);
+	}
+
+	/**
+	 * @param ttl
+	 *            time to live of this entry in milliseconds, overriding the
+	 *            cache default
+	 */
+	public synchronized void put(K key, V value, long ttl) {
+		removed(key, entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl)));
+	}
+
+	public synchronized void invalidate(K key) {
+		removed(key, entries.remove(key));
+	}
+
+	/**
+	 * @return a copy of the keys in the cache, expired entries included
+	 */
+	public synchronized Set<K> keys() {
+		return new HashSet<K>(entries.keySet());
+	}
+
+	public synchronized void invalidateAll() {
+		if (removalListener != null) {
+			for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+				removed(entry.getKey(), entry.getValue());
+			}
+		}
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	private void removed(K key, Entry<V> entry) {
+		RemovalListener<K, V> listener = removalListener;
+		if (listener != null && entry != null) {
+			listener.removed(key, entry.getValue());
+		}
+	}
+
+	/**
+	 * Notified, while the cache is locked, of each value leaving the cache:
+	 * evicted, expired, replaced or invalidated
+	 */
+	public interface RemovalListener<K, V> {
+		void removed(K key, V value);
+	}
+
+	/**
+	 * Cached value with its expiration time
+	 */
+	public static class Entry<V> {
+		private final V value;
+		private final long expiresAt;
+
+		private Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+
+		public boolean isExpired() {
+			return System.currentTimeMillis() >= expiresAt;
+		}
+	}
+}
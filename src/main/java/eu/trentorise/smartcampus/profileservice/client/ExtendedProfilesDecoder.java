@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfiles;
+
+/**
+ * Client side decoder of the {@link ExtendedProfiles} responses, in JSON or in
+ * the Smile binary format (requested with <code>Accept: {@value #SMILE}</code>),
+ * optionally gzip encoded. Large results can be iterated without reading
+ * them in memory.
+ */
+public class ExtendedProfilesDecoder {
+
+	public static final String SMILE = "application/x-jackson-smile";
+
+	private static final ObjectMapper jsonMapper = mapper(new JsonFactory());
+
+	private static final ObjectMapper smileMapper = mapper(new SmileFactory());
+
+	private ExtendedProfilesDecoder() {
+	}
+
+	/**
+	 * @param in
+	 *            response body
+	 * @param contentType
+	 *            Content-Type header of the response
+	 * @param contentEncoding
+	 *            Content-Encoding header of the response, may be null
+	 * @return the decoded result
+	 * @throws IOException
+	 */
+	public static ExtendedProfiles decode(InputStream in, String contentType, String contentEncoding)
+			throws IOException {
+		JsonParser parser = parser(in, contentType, contentEncoding);
+		try {
+			return parser.readValueAs(ExtendedProfiles.class);
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Iterates over the profiles of the response while reading it. The other
+	 * properties of the result are skipped. The stream is closed at the end of
+	 * the profiles.
+	 * 
+	 * @param in
+	 *            response body
+	 * @param contentType
+	 *            Content-Type header of the response
+	 * @param contentEncoding
+	 *            Content-Encoding header of the response, may be null
+	 * @throws IOException
+	 */
+	public static Iterator<ExtendedProfile> iterate(InputStream in, String contentType, String contentEncoding)
+			throws IOException {
+		final JsonParser parser = parser(in, contentType, contentEncoding);
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			parser.close();
+			throw new IOException("Not an ExtendedProfiles document");
+		}
+		boolean found = false;
+		while (!found && parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if ("profiles".equals(field) && value == JsonToken.START_ARRAY) {
+				found = true;
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (!found) {
+			parser.close();
+		}
+		final boolean hasProfiles = found;
+		return new Iterator<ExtendedProfile>() {
+
+			private JsonToken next = hasProfiles ? advance() : JsonToken.END_ARRAY;
+
+			private JsonToken advance() {
+				try {
+					JsonToken token = parser.nextToken();
+					if (token == JsonToken.END_ARRAY || token == null) {
+						parser.close();
+						return JsonToken.END_ARRAY;
+					}
+					return token;
+				} catch (IOException e) {
+					throw new IllegalStateException("Exception reading profiles", e);
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != JsonToken.END_ARRAY;
+			}
+
+			@Override
+			public ExtendedProfile next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				try {
+					ExtendedProfile profile = next == JsonToken.VALUE_NULL ? null : parser
+							.readValueAs(ExtendedProfile.class);
+					next = advance();
+					return profile;
+				} catch (IOException e) {
+					throw new IllegalStateException("Exception reading profiles", e);
+				}
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static JsonParser parser(InputStream in, String contentType, String contentEncoding)
+			throws IOException {
+		if (contentEncoding != null && contentEncoding.trim().equalsIgnoreCase("gzip")) {
+			in = new GZIPInputStream(in);
+		}
+		boolean smile = contentType != null && contentType.trim().toLowerCase().startsWith(SMILE);
+		return (smile ? smileMapper : jsonMapper).getJsonFactory().createJsonParser(in);
+	}
+
+	private static ObjectMapper mapper(JsonFactory factory) {
+		ObjectMapper mapper = new ObjectMapper(factory);
+		// newer servers may add properties to the results
+		mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+		return mapper;
+	}
+}
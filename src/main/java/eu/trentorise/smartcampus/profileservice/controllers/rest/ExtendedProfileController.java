@@ -17,8 +17,13 @@ package eu.trentorise.smartcampus.profileservice.controllers.rest;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -26,6 +31,7 @@ import javax.servlet.http.HttpSession;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -37,10 +43,15 @@ import org.springframework.web.bind.annotation.ResponseBody;
 import eu.trentorise.smartcampus.exceptions.AlreadyExistException;
 import eu.trentorise.smartcampus.exceptions.SmartCampusException;
 import eu.trentorise.smartcampus.profileservice.managers.PermissionManager;
+import eu.trentorise.smartcampus.profileservice.managers.ProfileCache;
 import eu.trentorise.smartcampus.profileservice.managers.ProfileManager;
 import eu.trentorise.smartcampus.profileservice.managers.ProfileServiceException;
 import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
 import eu.trentorise.smartcampus.profileservice.model.ExtendedProfiles;
+import eu.trentorise.smartcampus.profileservice.model.ProfileOperation;
+import eu.trentorise.smartcampus.profileservice.model.ProfileOperationResults;
+import eu.trentorise.smartcampus.profileservice.model.ProfileOperations;
+import eu.trentorise.smartcampus.profileservice.storage.ConcurrentUpdateException;
 import eu.trentorise.smartcampus.profileservice.storage.ProfileStorage;
 import eu.trentorise.smartcampus.resourceprovider.controller.SCController;
 import eu.trentorise.smartcampus.resourceprovider.model.AuthServices;
@@ -63,11 +74,41 @@ public class ExtendedProfileController extends SCController {
 	@Autowired
 	private ProfileStorage storage;
 
+	@Autowired
+	private ProfileCache profileCache;
+
 	@Autowired
 	private PermissionManager permissionManager;
 
 	@Autowired
 	private AuthServices services;
+
+	/**
+	 * max number of operations accepted by a batch request
+	 */
+	@Value("${profileservice.batch.maxSize:1000}")
+	private int batchMaxSize;
+
+	/**
+	 * profiles read from the storage at a time by streamed responses
+	 */
+	@Value("${profileservice.stream.pageSize:500}")
+	private int streamPageSize;
+
+	/**
+	 * max page size of the paginated attribute search, larger limits are
+	 * reduced to it
+	 */
+	@Value("${profileservice.search.maxLimit:1000}")
+	private int searchMaxLimit;
+
+	/**
+	 * milliseconds excluded from the end of an incremental result, so that
+	 * writes still in progress are returned by the next request
+	 */
+	@Value("${profileservice.sync.skew:1000}")
+	private long syncSkew;
+
 	@Override
 	protected AuthServices getAuthServices() {
 		return services;
@@ -122,6 +163,47 @@ public class ExtendedProfileController extends SCController {
 	}
 
 
+	/**
+	 * Creates, updates and deletes extended profiles of several users in a
+	 * single request. Each operation has the same semantics of the
+	 * corresponding /extprofile/app/{userId}/{profileId} call and is reported
+	 * separately.
+	 * 
+	 * @param response
+	 * @param operations
+	 * @return the results of the operations, in the same order
+	 * @throws IOException
+	 * @throws ProfileServiceException
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = "/extprofile/batch")
+	public @ResponseBody
+	ProfileOperationResults executeBatch(HttpServletResponse response,
+			@RequestBody ProfileOperations operations) throws IOException,
+			ProfileServiceException {
+		List<ProfileOperation> list = operations.getOperations();
+		if (list == null || list.size() > batchMaxSize) {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			return null;
+		}
+		try {
+			Map<String, User> users = new HashMap<String, User>();
+			for (ProfileOperation op : list) {
+				if (op.getType() == ProfileOperation.Type.CREATE && op.getUserId() != null
+						&& !users.containsKey(op.getUserId())) {
+					users.put(op.getUserId(), getUserObject(op.getUserId()));
+				}
+			}
+			ProfileOperationResults results = new ProfileOperationResults();
+			results.setResults(profileManager.execute(list, users));
+			return results;
+
+		} catch (Exception e) {
+			logger.error("General exception executing extended profile batch", e);
+			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return null;
+		}
+	}
+
 	/**
 	 * Returns extended profile of a user given application and profileId,
 	 * filtered by user visibility permissions
@@ -143,7 +225,11 @@ public class ExtendedProfileController extends SCController {
 			@PathVariable("profileId") String profileId) throws IOException,
 			ProfileServiceException {
 		try {
-			ExtendedProfile profile = storage.findExtendedProfile(userId, profileId);
+			ExtendedProfile profile = profileCache.findExtendedProfile(userId, profileId);
+			if (profile != null
+					&& ProfileETags.notModified(request, response, ProfileETags.etag(profile.getUpdateTime(), request))) {
+				return null;
+			}
 			return profile;
 
 		} catch (Exception e) {
@@ -173,7 +259,12 @@ public class ExtendedProfileController extends SCController {
 		try {
 			String userId = getUserId();
 
-			return storage.findExtendedProfile(userId, profileId);
+			ExtendedProfile profile = profileCache.findExtendedProfile(userId, profileId);
+			if (profile != null
+					&& ProfileETags.notModified(request, response, ProfileETags.etag(profile.getUpdateTime(), request))) {
+				return null;
+			}
+			return profile;
 
 		} catch (Exception e) {
 			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -198,8 +289,12 @@ public class ExtendedProfileController extends SCController {
 			ProfileServiceException {
 		try {
 			String userId = getUserId();
+			List<ExtendedProfile> profiles = storage.findExtendedProfiles(""+userId);
+			if (ProfileETags.notModified(request, response, ProfileETags.etag(profiles))) {
+				return null;
+			}
 			ExtendedProfiles ext = new ExtendedProfiles();
-			ext.setProfiles(storage.findExtendedProfiles(""+userId));
+			ext.setProfiles(profiles);
 			return ext;
 
 		} catch (Exception e) {
@@ -210,11 +305,40 @@ public class ExtendedProfileController extends SCController {
 
 
 	/**
-	 * Returns all extended profile for given application and profileId, given the profile attributes
+	 * Returns the extended profiles of an authenticated user created, updated
+	 * or deleted after the given version
+	 * 
+	 * @param response
+	 * @param since
+	 *            version returned by the previous request, 0 for all the
+	 *            profiles
+	 * @return changed profiles, ids of the deleted ones and the version to use
+	 *         for the next request; 410 if the deleted profiles since that
+	 *         version were purged, a full synchronization is needed
+	 * @throws IOException
+	 * @throws ProfileServiceException
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/extprofile/me", params = "since")
+	public @ResponseBody
+	ExtendedProfiles getMyExtendedProfileChanges(HttpServletResponse response,
+			@RequestParam long since) throws IOException,
+			ProfileServiceException {
+		return getChanges(response, Collections.singletonList(getUserId()), null, since);
+	}
+
+	/**
+	 * Returns all extended profile for given application and profileId, given the profile attributes.
+	 * If limit is specified the result is paginated: the next page is requested passing 
+	 * the <code>next</code> token of the result as <code>after</code> parameter. The limit
+	 * must be positive and is reduced to <code>profileservice.search.maxLimit</code>. If stream 
+	 * is true the whole result is written while reading it from the storage.
 	 * 
 	 * @param request
 	 * @param response
 	 * @param profileId
+	 * @param after
+	 * @param limit
+	 * @param stream
 	 * @param profileAttrs
 	 * @return
 	 * @throws IOException
@@ -225,18 +349,43 @@ public class ExtendedProfileController extends SCController {
 	ExtendedProfiles getUsersExtendedProfilesByAttributes(
 			HttpServletRequest request, HttpServletResponse response,
 			@PathVariable String profileId, 
+			@RequestParam(required = false) String after,
+			@RequestParam(required = false) Integer limit,
+			@RequestParam(required = false, defaultValue = "false") boolean stream,
 			@RequestBody Map<String, Object> profileAttrs) throws IOException,
 			ProfileServiceException {
 
 		try {
-			List<ExtendedProfile> profiles = storage.findExtendedProfiles(profileId, profileAttrs);
+			if (stream) {
+				ProfileStreamWriter.write(request, response,
+						storage.iterateExtendedProfiles(profileId, profileAttrs, streamPageSize));
+				return null;
+			}
 
 			ExtendedProfiles ext = new ExtendedProfiles();
-			ext.setProfiles(profiles);
+			if (limit != null) {
+				if (limit <= 0) {
+					response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+					return null;
+				}
+				limit = Math.min(limit, searchMaxLimit);
+				List<ExtendedProfile> profiles = storage.findExtendedProfiles(profileId, profileAttrs, after, limit);
+				ext.setProfiles(profiles);
+				if (profiles.size() == limit) {
+					ext.setNext(profiles.get(profiles.size() - 1).getId());
+				}
+			} else {
+				ext.setProfiles(storage.findExtendedProfiles(profileId, profileAttrs));
+			}
 			return ext;
 
 		} catch (Exception e) {
-			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			logger.error("Exception searching extended profiles " + profileId, e);
+			// a streamed response may have been partially written
+			if (!response.isCommitted()) {
+				response.reset();
+				response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
 			return null;
 		}
 
@@ -249,6 +398,9 @@ public class ExtendedProfileController extends SCController {
 	 * @param response
 	 * @param session
 	 * @param userIds
+	 * @param stream
+	 *            true to write the profiles to the response while reading
+	 *            them
 	 * @return
 	 * @throws IOException
 	 * @throws ProfileServiceException
@@ -257,8 +409,13 @@ public class ExtendedProfileController extends SCController {
 	public @ResponseBody
 	ExtendedProfiles getUsersExtendedProfiles(HttpServletRequest request,
 			HttpServletResponse response, HttpSession session,
-			@RequestParam List<String> userIds) throws IOException,
+			@RequestParam List<String> userIds,
+			@RequestParam(required = false, defaultValue = "false") boolean stream) throws IOException,
 			ProfileServiceException {
+		if (stream) {
+			streamAllProfiles(request, response, userIds, null);
+			return null;
+		}
 		return getAllProfiles(response, userIds, null);
 	}
 	/**
@@ -271,6 +428,9 @@ public class ExtendedProfileController extends SCController {
 	 * @param userIds
 	 * @param userId
 	 * @param profileId
+	 * @param stream
+	 *            true to write the profiles to the response while reading
+	 *            them
 	 * @return
 	 * @throws IOException
 	 * @throws ProfileServiceException
@@ -280,20 +440,106 @@ public class ExtendedProfileController extends SCController {
 	ExtendedProfiles getUsersAppProfileExtendedProfiles(HttpServletRequest request,
 			HttpServletResponse response, HttpSession session,
 			@RequestParam List<String> userIds,
-			@PathVariable String profileId) throws IOException,
+			@PathVariable String profileId,
+			@RequestParam(required = false, defaultValue = "false") boolean stream) throws IOException,
 			ProfileServiceException {
+		if (stream) {
+			streamAllProfiles(request, response, userIds, profileId);
+			return null;
+		}
 		return getAllProfiles(response, userIds, profileId);
 	}
 
+	/**
+	 * Returns the extended profiles of a list of userIds created, updated or
+	 * deleted after the given version
+	 * 
+	 * @param response
+	 * @param userIds
+	 * @param since
+	 *            version returned by the previous request, 0 for all the
+	 *            profiles
+	 * @return changed profiles, ids of the deleted ones and the version to use
+	 *         for the next request; 410 if the deleted profiles since that
+	 *         version were purged, a full synchronization is needed
+	 * @throws IOException
+	 * @throws ProfileServiceException
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/extprofile/all", params = "since")
+	public @ResponseBody
+	ExtendedProfiles getUsersExtendedProfileChanges(HttpServletResponse response,
+			@RequestParam List<String> userIds,
+			@RequestParam long since) throws IOException,
+			ProfileServiceException {
+		return getChanges(response, userIds, null, since);
+	}
+
+	/**
+	 * Returns the extended profiles of a list of userIds given an application
+	 * and profile created, updated or deleted after the given version
+	 * 
+	 * @param response
+	 * @param userIds
+	 * @param profileId
+	 * @param since
+	 *            version returned by the previous request, 0 for all the
+	 *            profiles
+	 * @return changed profiles, ids of the deleted ones and the version to use
+	 *         for the next request; 410 if the deleted profiles since that
+	 *         version were purged, a full synchronization is needed
+	 * @throws IOException
+	 * @throws ProfileServiceException
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/extprofile/all/{profileId:.*}", params = "since")
+	public @ResponseBody
+	ExtendedProfiles getUsersAppProfileExtendedProfileChanges(HttpServletResponse response,
+			@RequestParam List<String> userIds,
+			@PathVariable String profileId,
+			@RequestParam long since) throws IOException,
+			ProfileServiceException {
+		return getChanges(response, userIds, profileId, since);
+	}
+
+	protected ExtendedProfiles getChanges(HttpServletResponse response, List<String> userIds, String profileId,
+			long since) {
+		try {
+			if (since > 0 && since < storage.getPurgeHorizon()) {
+				response.setStatus(HttpServletResponse.SC_GONE);
+				return null;
+			}
+			ExtendedProfiles ext = new ExtendedProfiles();
+			List<String> deleted = new ArrayList<String>();
+			long until = System.currentTimeMillis() - syncSkew;
+			if (until <= since) {
+				ext.setProfiles(new ArrayList<ExtendedProfile>());
+				ext.setDeleted(deleted);
+				ext.setVersion(since);
+				return ext;
+			}
+			Set<String> users = new LinkedHashSet<String>(userIds);
+			ext.setProfiles(storage.findExtendedProfileChanges(users, profileId, since, until, false));
+			for (ExtendedProfile p : storage.findExtendedProfileChanges(users, profileId, since, until, true)) {
+				deleted.add(p.getId());
+			}
+			ext.setDeleted(deleted);
+			ext.setVersion(until);
+			return ext;
+
+		} catch (Exception e) {
+			logger.error("Exception reading extended profile changes", e);
+			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return null;
+		}
+	}
+
 	protected ExtendedProfiles getAllProfiles(HttpServletResponse response, List<String> userIds, String profileId) {
 		try {
+			// keeps the order of the requested userIds
 			List<ExtendedProfile> profiles = new ArrayList<ExtendedProfile>();
-			for (String userId : userIds) {
-				if (profileId != null) {
-					profiles.add(storage.findExtendedProfile(userId, profileId));
-				} else {
-					profiles.addAll(storage.findExtendedProfiles(userId));
-				}
+			Iterator<ExtendedProfile> iterator = storage.iterateExtendedProfilesByUsers(userIds, profileId,
+					storage.getBulkChunkSize());
+			while (iterator.hasNext()) {
+				profiles.add(iterator.next());
 			}
 
 			ExtendedProfiles ext = new ExtendedProfiles();
@@ -306,6 +552,25 @@ public class ExtendedProfileController extends SCController {
 		}
 	}
 
+	/**
+	 * Writes the profiles of the users to the response while reading them, a
+	 * chunk of users at a time. Errors after the first chunk truncate the
+	 * response.
+	 */
+	protected void streamAllProfiles(HttpServletRequest request, HttpServletResponse response, List<String> userIds,
+			String profileId) {
+		try {
+			ProfileStreamWriter.write(request, response,
+					storage.iterateExtendedProfilesByUsers(userIds, profileId, streamPageSize));
+		} catch (Exception e) {
+			logger.error("Exception streaming extended profiles", e);
+			if (!response.isCommitted()) {
+				response.reset();
+				response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+		}
+	}
+
 	/**
 	 * Updates a extended profile of a user given application and profileId
 	 * 
@@ -325,19 +590,108 @@ public class ExtendedProfileController extends SCController {
 			@PathVariable("profileId") String profileId,
 			@RequestBody Map<String, Object> content) throws IOException,
 			ProfileServiceException {
+		updateProfile(request, response, userId, profileId, content);
+	}
+
+	/**
+	 * Replaces the profile content. If the request carries an If-Match header
+	 * the update is applied only if the stored profile still has one of the
+	 * given versions, otherwise 412 is returned. Without it 409 is returned
+	 * if the profile keeps being written by others.
+	 */
+	protected void updateProfile(HttpServletRequest request, HttpServletResponse response, String userId,
+			String profileId, Map<String, Object> content) {
 		try {
-			ExtendedProfile profile = storage.findExtendedProfile(userId, profileId);
+			List<Long> expected = ProfileETags.ifMatchVersions(request);
+			if (expected != null) {
+				long version = storage.compareAndSetExtendedProfileContent(userId, profileId, content, expected);
+				if (version < 0) {
+					response.setStatus(storage.existsExtendedProfile(userId, profileId) ? HttpServletResponse.SC_PRECONDITION_FAILED
+							: HttpServletResponse.SC_BAD_REQUEST);
+					return;
+				}
+				profileCache.invalidate(userId, profileId);
+				response.setHeader(ProfileETags.ETAG, ProfileETags.etag(version, request));
+				return;
+			}
 
-			if (profile == null) {
+			long version = storage.updateExtendedProfileContent(userId, profileId, content);
+			if (version < 0) {
 				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 				return;
 			}
+			profileCache.invalidate(userId, profileId);
+			response.setHeader(ProfileETags.ETAG, ProfileETags.etag(version, request));
+
+		} catch (ConcurrentUpdateException e) {
+			logger.warn(e.getMessage());
+			response.setStatus(HttpServletResponse.SC_CONFLICT);
+		} catch (Exception e) {
+			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Partially updates the extended profile of a user given application and profileId.
+	 * The body is a JSON merge patch of the profile content. Sent as POST with 
+	 * header <code>X-HTTP-Method-Override: PATCH</code>.
+	 * 
+	 * @param request
+	 * @param response
+	 * @param userId
+	 * @param profileId
+	 * @param patch
+	 * @throws IOException
+	 * @throws ProfileServiceException
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = "/extprofile/app/{userId}/{profileId:.*}", headers = "X-HTTP-Method-Override=PATCH")
+	public void patchExtendedProfile(HttpServletRequest request, HttpServletResponse response,
+			@PathVariable("userId") String userId,
+			@PathVariable("profileId") String profileId,
+			@RequestBody Map<String, Object> patch) throws IOException,
+			ProfileServiceException {
+		patchProfile(request, response, userId, profileId, patch);
+	}
+
+	/**
+	 * Partially updates the extended profile of the current user given application and profileId.
+	 * The body is a JSON merge patch of the profile content. Sent as POST with 
+	 * header <code>X-HTTP-Method-Override: PATCH</code>.
+	 * 
+	 * @param request
+	 * @param response
+	 * @param profileId
+	 * @param patch
+	 * @throws IOException
+	 * @throws ProfileServiceException
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = "/extprofile/me/{profileId:.*}", headers = "X-HTTP-Method-Override=PATCH")
+	public void patchMyExtendedProfile(HttpServletRequest request, HttpServletResponse response,
+			@PathVariable("profileId") String profileId,
+			@RequestBody Map<String, Object> patch) throws IOException,
+			ProfileServiceException {
+		patchProfile(request, response, getUserId(), profileId, patch);
+	}
 
-			profile.setContent(content);
-			profile.setUpdateTime(System.currentTimeMillis());
-			storage.updateObject(profile);
+	protected void patchProfile(HttpServletRequest request, HttpServletResponse response, String userId,
+			String profileId, Map<String, Object> patch) {
+		try {
+			long version = storage.patchExtendedProfileContent(userId, profileId, patch);
+			if (version < 0) {
+				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+				return;
+			}
+			profileCache.invalidate(userId, profileId);
+			response.setHeader(ProfileETags.ETAG, ProfileETags.etag(version, request));
 
+		} catch (IllegalArgumentException e) {
+			logger.error("Invalid patch of extended profile " + profileId, e);
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+		} catch (ConcurrentUpdateException e) {
+			logger.warn(e.getMessage());
+			response.setStatus(HttpServletResponse.SC_CONFLICT);
 		} catch (Exception e) {
+			logger.error("Exception patching extended profile " + profileId, e);
 			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 		}
 	}
@@ -399,22 +753,7 @@ public class ExtendedProfileController extends SCController {
 			@PathVariable("profileId") String profileId,
 			@RequestBody Map<String, Object> content) throws IOException,
 			ProfileServiceException {
-		try {
-			String userId = getUserId();
-			ExtendedProfile profile = storage.findExtendedProfile(userId, profileId);
-
-			if (profile == null) {
-				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-				return;
-			} else {
-				profile.setContent(content);
-				profile.setUpdateTime(System.currentTimeMillis());
-				storage.updateObject(profile);
-			}
-
-		} catch (Exception e) {
-			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-		}
+		updateProfile(request, response, getUserId(), profileId, content);
 	}
 
 	/**
@@ -435,7 +774,11 @@ public class ExtendedProfileController extends SCController {
 			@PathVariable("profileId") String profileId) throws IOException,
 			ProfileServiceException {
 		try {
-			storage.deleteExtendedProfile(userId, profileId);
+			ExtendedProfile deleted = storage.deleteExtendedProfile(userId, profileId);
+			profileCache.invalidate(userId, profileId);
+			if (deleted != null) {
+				profileManager.invalidateDeleted(deleted);
+			}
 
 		} catch (Exception e) {
 			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -458,7 +801,12 @@ public class ExtendedProfileController extends SCController {
 			@PathVariable("profileId") String profileId) throws IOException,
 			ProfileServiceException {
 		try {
-			storage.deleteExtendedProfile(getUserId(), profileId);
+			String userId = getUserId();
+			ExtendedProfile deleted = storage.deleteExtendedProfile(userId, profileId);
+			profileCache.invalidate(userId, profileId);
+			if (deleted != null) {
+				profileManager.invalidateDeleted(deleted);
+			}
 		} catch (Exception e) {
 			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 		}
@@ -484,12 +832,8 @@ public class ExtendedProfileController extends SCController {
 	}
 
 	protected ExtendedProfiles getSharedProfiles(String actorId, String profileId) {
-		List<ExtendedProfile> res = new ArrayList<ExtendedProfile>();
 		List<Long> list = profileManager.getShared(actorId);
-		for (Long entityId : list) {
-			ExtendedProfile p = storage.getObjectByEntityId(entityId, profileId);
-			if (p != null) res.add(p);
-		}
+		List<ExtendedProfile> res = storage.getObjectsByEntityIds(list, profileId);
 		ExtendedProfiles eps = new ExtendedProfiles();
 		eps.setProfiles(res);
 		return eps;
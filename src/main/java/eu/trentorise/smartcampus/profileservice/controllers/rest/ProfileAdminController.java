@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.controllers.rest;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import eu.trentorise.smartcampus.profileservice.managers.DedupReport;
+import eu.trentorise.smartcampus.profileservice.managers.ProfileDeduplicator;
+import eu.trentorise.smartcampus.profileservice.security.MappedResourceFilter;
+
+/**
+ * Administrative operations on the profile data. The paths are OAuth
+ * protected and mapped in <code>resourceList.xml</code> to the
+ * {@link #ADMIN_SCOPE} scope: requests that did not go through the scope
+ * check of the {@link MappedResourceFilter} are rejected.
+ */
+@Controller
+public class ProfileAdminController {
+
+	public static final String ADMIN_SCOPE = "smartcampus.profileservice.admin";
+
+	@Autowired
+	private ProfileDeduplicator deduplicator;
+
+	/**
+	 * Starts the deduplication of the profiles, see {@link ProfileDeduplicator}
+	 * 
+	 * @param dryRun
+	 *            true, the default, to only report the duplicates
+	 * @return the report of the started run, to be polled with GET
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = "/admin/dedup")
+	public @ResponseBody
+	DedupReport startDedup(HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(required = false, defaultValue = "true") boolean dryRun) {
+		if (!isAllowed(request, response)) {
+			return null;
+		}
+		if (!deduplicator.start(dryRun)) {
+			response.setStatus(HttpServletResponse.SC_CONFLICT);
+		} else {
+			response.setStatus(HttpServletResponse.SC_ACCEPTED);
+		}
+		return deduplicator.getReport();
+	}
+
+	/**
+	 * @return the report of the running or of the last deduplication, 404 if
+	 *         never started
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/admin/dedup")
+	public @ResponseBody
+	DedupReport getDedup(HttpServletRequest request, HttpServletResponse response) {
+		if (!isAllowed(request, response)) {
+			return null;
+		}
+		DedupReport report = deduplicator.getReport();
+		if (report == null) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+		}
+		return report;
+	}
+
+	private boolean isAllowed(HttpServletRequest request, HttpServletResponse response) {
+		if (!ADMIN_SCOPE.equals(request.getAttribute(MappedResourceFilter.SCOPE_ATTRIBUTE))) {
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			return false;
+		}
+		return true;
+	}
+}
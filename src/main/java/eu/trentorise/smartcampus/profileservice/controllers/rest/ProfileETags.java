@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.controllers.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.MediaType;
+
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+
+/**
+ * Entity tags of extended profiles, derived from the profile update time,
+ * and evaluation of the conditional request headers. The strong tag of a
+ * profile names its format too, each format being a different
+ * representation of the same version.
+ */
+class ProfileETags {
+
+	static final String ETAG = "ETag";
+	static final String IF_NONE_MATCH = "If-None-Match";
+	static final String IF_MATCH = "If-Match";
+
+	/**
+	 * formats of a single profile, in the order of the message converters
+	 */
+	private static final MediaType[] PROFILE_TYPES = { MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML,
+			MediaType.TEXT_XML };
+
+	/**
+	 * @param version
+	 * @param request
+	 *            whose Accept header selects the format of the response
+	 */
+	static String etag(long version, HttpServletRequest request) {
+		return "\"" + version + "-" + format(request) + "\"";
+	}
+
+	/**
+	 * @return the subtype of the format chosen by the message converters for
+	 *         a profile, given the Accept header of the request: json by
+	 *         default
+	 */
+	static String format(HttpServletRequest request) {
+		List<MediaType> accepted;
+		try {
+			accepted = MediaType.parseMediaTypes(request.getHeader("Accept"));
+		} catch (IllegalArgumentException e) {
+			return MediaType.APPLICATION_JSON.getSubtype();
+		}
+		MediaType.sortBySpecificityAndQuality(accepted);
+		for (MediaType type : accepted) {
+			if (type.getQualityValue() == 0) continue;
+			for (MediaType producible : PROFILE_TYPES) {
+				if (type.includes(producible)) {
+					return producible.getSubtype();
+				}
+			}
+		}
+		return MediaType.APPLICATION_JSON.getSubtype();
+	}
+
+	/**
+	 * Weak tag of a list of profiles, changes whenever a profile of the list
+	 * is added, removed or updated
+	 */
+	static String etag(List<ExtendedProfile> profiles) {
+		long hash = 17;
+		for (ExtendedProfile p : profiles) {
+			hash = 31 * hash + (p.getId() == null ? 0 : p.getId().hashCode());
+			hash = 31 * hash + p.getUpdateTime();
+		}
+		return "W/\"" + Long.toHexString(hash) + "-" + profiles.size() + "\"";
+	}
+
+	/**
+	 * Sets the ETag of the response and checks it against If-None-Match
+	 * @return true if the client copy is current: the status is set to 304
+	 * and no body should be written
+	 */
+	static boolean notModified(HttpServletRequest request, HttpServletResponse response, String etag) {
+		response.setHeader(ETAG, etag);
+		String header = request.getHeader(IF_NONE_MATCH);
+		if (header == null) {
+			return false;
+		}
+		for (String tag : header.split(",")) {
+			tag = tag.trim();
+			if (tag.equals("*") || tag.equals(etag)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the versions listed in the If-Match header, whatever the
+	 * format of the tag, null if the header is missing or is '*'. Weak and
+	 * unknown tags never match, so they are skipped.
+	 */
+	static List<Long> ifMatchVersions(HttpServletRequest request) {
+		String header = request.getHeader(IF_MATCH);
+		if (header == null || header.trim().equals("*")) {
+			return null;
+		}
+		List<Long> versions = new ArrayList<Long>();
+		for (String tag : header.split(",")) {
+			tag = tag.trim();
+			if (tag.length() > 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+				String value = tag.substring(1, tag.length() - 1);
+				int format = value.indexOf('-');
+				if (format > 0) {
+					value = value.substring(0, format);
+				}
+				try {
+					versions.add(Long.parseLong(value));
+				} catch (NumberFormatException e) {
+					// not a profile tag
+				}
+			}
+		}
+		return versions;
+	}
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.controllers.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.springframework.http.MediaType;
+
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+
+/**
+ * Writes an {@link eu.trentorise.smartcampus.profileservice.model.ExtendedProfiles}
+ * JSON document directly to the response while iterating over the profiles,
+ * without building the list in memory. The response is gzip encoded when
+ * the client accepts it, and written in the Smile binary format when the
+ * client accepts {@link SmileProfilesHttpMessageConverter#SMILE}.
+ */
+class ProfileStreamWriter {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private static final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+	static {
+		mapper.configure(SerializationConfig.Feature.FLUSH_AFTER_WRITE_VALUE, false);
+		smileMapper.configure(SerializationConfig.Feature.FLUSH_AFTER_WRITE_VALUE, false);
+	}
+
+	static void write(HttpServletRequest request, HttpServletResponse response, Iterator<ExtendedProfile> profiles)
+			throws IOException {
+		ObjectMapper mapper = ProfileStreamWriter.mapper;
+		if (acceptsSmile(request)) {
+			mapper = smileMapper;
+			response.setContentType(SmileProfilesHttpMessageConverter.SMILE.toString());
+		} else {
+			response.setContentType("application/json;charset=UTF-8");
+		}
+		response.addHeader("Vary", "Accept, Accept-Encoding");
+		OutputStream out = response.getOutputStream();
+		if (acceptsGzip(request)) {
+			response.setHeader("Content-Encoding", "gzip");
+			out = new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+		JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+		generator.writeStartObject();
+		generator.writeArrayFieldStart("profiles");
+		while (profiles.hasNext()) {
+			mapper.writeValue(generator, profiles.next());
+		}
+		generator.writeEndArray();
+		generator.writeEndObject();
+		// closes the gzip stream too, writing its trailer
+		generator.close();
+	}
+
+	private static boolean acceptsSmile(HttpServletRequest request) {
+		String accept = request.getHeader("Accept");
+		if (accept == null) return false;
+		for (MediaType type : MediaType.parseMediaTypes(accept)) {
+			if (SmileProfilesHttpMessageConverter.SMILE.includes(type) && type.getQualityValue() > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean acceptsGzip(HttpServletRequest request) {
+		String accept = request.getHeader("Accept-Encoding");
+		if (accept == null) return false;
+		for (String coding : accept.split(",")) {
+			String[] parts = coding.trim().split(";");
+			if (parts[0].trim().equalsIgnoreCase("gzip")) {
+				return parts.length == 1 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+}
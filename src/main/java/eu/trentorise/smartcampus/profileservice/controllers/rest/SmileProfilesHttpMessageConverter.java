@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.controllers.rest;
+
+import java.util.Collections;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.springframework.http.MediaType;
+
+import eu.trentorise.smartcampus.profileservice.metrics.TimedJacksonHttpMessageConverter;
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfiles;
+
+/**
+ * Writes {@link ExtendedProfiles} results in the Smile binary JSON format
+ * to the clients accepting {@link #SMILE}. Registered after the JSON
+ * converter, so that JSON stays the default.
+ */
+public class SmileProfilesHttpMessageConverter extends TimedJacksonHttpMessageConverter {
+
+	public static final MediaType SMILE = new MediaType("application", "x-jackson-smile");
+
+	public SmileProfilesHttpMessageConverter() {
+		setObjectMapper(new ObjectMapper(new SmileFactory()));
+		setSupportedMediaTypes(Collections.singletonList(SMILE));
+	}
+
+	@Override
+	protected boolean supports(Class<?> clazz) {
+		return ExtendedProfiles.class.isAssignableFrom(clazz);
+	}
+
+	@Override
+	public boolean canRead(Class<?> clazz, MediaType mediaType) {
+		return false;
+	}
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.controllers.rest;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfiles;
+
+/**
+ * Adds <code>Vary: Accept</code> to the responses of the handlers returning
+ * {@link ExtendedProfile} or {@link ExtendedProfiles}, whose format, JSON,
+ * XML or Smile, depends on the Accept header, so that caches do not serve one
+ * format for the other
+ */
+public class VaryAcceptInterceptor extends HandlerInterceptorAdapter {
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+			throws Exception {
+		if (handler instanceof HandlerMethod && varies(((HandlerMethod) handler).getMethod().getReturnType())) {
+			response.addHeader("Vary", "Accept");
+		}
+		return true;
+	}
+
+	private static boolean varies(Class<?> type) {
+		return ExtendedProfile.class.isAssignableFrom(type) || ExtendedProfiles.class.isAssignableFrom(type);
+	}
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.managers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Progress and outcome of a {@link ProfileDeduplicator} run
+ */
+public class DedupReport {
+
+	/**
+	 * max duplicate ids listed in the report
+	 */
+	static final int MAX_LISTED = 1000;
+
+	private final boolean dryRun;
+
+	private final long startTime = System.currentTimeMillis();
+
+	private volatile long endTime;
+
+	private volatile long scanned;
+
+	private volatile long duplicates;
+
+	private volatile long orphans;
+
+	private final List<String> duplicateIds = new ArrayList<String>();
+
+	private volatile String error;
+
+	DedupReport(boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	/**
+	 * counts a scanned profile
+	 * 
+	 * @return the profiles scanned so far
+	 */
+	synchronized long scanned() {
+		return ++scanned;
+	}
+
+	synchronized void addDuplicate(String id) {
+		duplicates++;
+		if (duplicateIds.size() < MAX_LISTED) {
+			duplicateIds.add(id);
+		}
+	}
+
+	synchronized void addOrphan() {
+		orphans++;
+	}
+
+	void setError(String error) {
+		this.error = error;
+	}
+
+	void complete() {
+		endTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return true if the duplicates were only reported, not removed
+	 */
+	public boolean isDryRun() {
+		return dryRun;
+	}
+
+	public boolean isRunning() {
+		return endTime == 0;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return completion time, 0 while running
+	 */
+	public long getEndTime() {
+		return endTime;
+	}
+
+	public long getScanned() {
+		return scanned;
+	}
+
+	/**
+	 * @return duplicates found, removed unless dry run
+	 */
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * @return pairs owned by profiles never stored, released unless dry run
+	 */
+	public long getOrphans() {
+		return orphans;
+	}
+
+	/**
+	 * @return ids of the first {@value #MAX_LISTED} duplicates
+	 */
+	public synchronized List<String> getDuplicateIds() {
+		return Collections.unmodifiableList(new ArrayList<String>(duplicateIds));
+	}
+
+	/**
+	 * @return the exception that stopped the run, null if none
+	 */
+	public String getError() {
+		return error;
+	}
+}
@@ -15,11 +15,25 @@
  ******************************************************************************/
 package eu.trentorise.smartcampus.profileservice.managers;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
 import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import eu.trentorise.smartcampus.common.SemanticHelper;
 import eu.trentorise.smartcampus.exceptions.SmartCampusException;
+import eu.trentorise.smartcampus.profileservice.cache.ExpiringCache;
+import eu.trentorise.smartcampus.profileservice.metrics.MetricsSource;
+import eu.trentorise.smartcampus.profileservice.metrics.MetricsWriter;
+import eu.trentorise.smartcampus.profileservice.metrics.RequestMetrics;
+import eu.trentorise.smartcampus.profileservice.metrics.RequestMetrics.Stage;
 import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
 import eu.trentorise.smartcampus.social.SocialEngineConnector;
 import eu.trentorise.smartcampus.social.model.User;
@@ -29,13 +43,126 @@ import eu.trentorise.smartcampus.social.model.User;
  * 
  */
 @Component
-public class PermissionManager extends SocialEngineConnector {
+public class PermissionManager extends SocialEngineConnector implements MetricsSource {
 
 	private static final Logger logger = Logger
 			.getLogger(PermissionManager.class);
 
+	@Value("${profileservice.cache.permission.size:10000}")
+	private int cacheSize;
+
+	/**
+	 * seconds a granted permission is cached: a share revoked in the social
+	 * engine keeps being honoured for up to this time
+	 */
+	@Value("${profileservice.cache.permission.allowTtl:10}")
+	private long allowTtl;
+
+	/**
+	 * seconds a denied permission is cached: a new share is seen after up to
+	 * this time
+	 */
+	@Value("${profileservice.cache.permission.denyTtl:60}")
+	private long denyTtl;
+
+	/**
+	 * decisions of the social engine by (userSocialId, profileSocialId)
+	 */
+	private ExpiringCache<List<String>, Boolean> decisions;
+
+	@PostConstruct
+	public void init() {
+		decisions = new ExpiringCache<List<String>, Boolean>(cacheSize, allowTtl * 1000);
+	}
+
+	/**
+	 * @param user
+	 * @param profile
+	 * @return true if the profile is shared with the user, the decision of
+	 *         the social engine is cached
+	 * @throws SmartCampusException
+	 */
 	public boolean checkExtendedProfilePermission(User user,
 			ExtendedProfile profile) throws SmartCampusException {
+		List<String> key = key(user.getSocialId(), profile.getSocialId());
+		Boolean allowed = decisions.get(key);
+		if (allowed == null) {
+			allowed = isSharedWithUser(user, profile);
+			decisions.put(key, allowed, (allowed ? allowTtl : denyTtl) * 1000);
+		}
+		return allowed;
+	}
+
+	/**
+	 * Checks the permission of the user on many profiles, asking the social
+	 * engine only the decisions not cached, once for each profile. The
+	 * social engine client offers only the check of a single entity, so the
+	 * uncached decisions are read one after the other.
+	 * 
+	 * @param user
+	 * @param profiles
+	 * @return the decision for each profile id
+	 * @throws SmartCampusException
+	 */
+	public Map<String, Boolean> checkExtendedProfilePermissions(User user,
+			Collection<ExtendedProfile> profiles) throws SmartCampusException {
+		Map<String, Boolean> result = new HashMap<String, Boolean>();
+		for (ExtendedProfile profile : profiles) {
+			if (!result.containsKey(profile.getId())) {
+				result.put(profile.getId(), checkExtendedProfilePermission(user, profile));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Drops the cached decision, to be called when the profile is shared
+	 * with or unshared from the user. Sharing changes made directly in the
+	 * social engine are seen after at most allowTtl or denyTtl seconds.
+	 */
+	public void invalidatePermission(String userSocialId, String profileSocialId) {
+		decisions.invalidate(key(userSocialId, profileSocialId));
+	}
+
+	/**
+	 * Drops the cached decisions of the user, to be called when the sharing
+	 * of the user changes
+	 */
+	public void invalidateUserPermissions(String userSocialId) {
+		for (List<String> key : decisions.keys()) {
+			if (key.get(0).equals(userSocialId)) {
+				decisions.invalidate(key);
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached decisions on the profile, to be called when the
+	 * sharing of the profile changes or the profile is deleted
+	 */
+	public void invalidateProfilePermissions(String profileSocialId) {
+		for (List<String> key : decisions.keys()) {
+			if (key.get(1).equals(profileSocialId)) {
+				decisions.invalidate(key);
+			}
+		}
+	}
+
+	public void invalidateAllPermissions() {
+		decisions.invalidateAll();
+	}
+
+	@Override
+	public void writeMetrics(MetricsWriter writer) {
+		writer.gauge("permission_cache_size", "Cached permission decisions", decisions.size());
+		writer.counter("permission_cache_hits_total", "Permission decision cache hits", decisions.getHits());
+		writer.counter("permission_cache_misses_total", "Permission decision cache misses", decisions.getMisses());
+		writer.counter("permission_cache_evictions_total", "Permission decision cache evictions",
+				decisions.getEvictions());
+	}
+
+	private boolean isSharedWithUser(User user, ExtendedProfile profile) throws SmartCampusException {
+		long start = System.nanoTime();
 		try {
 			return SemanticHelper.isEntitySharedWithUser(socialEngineClient, Long.parseLong(user.getSocialId()), Long.parseLong(profile.getSocialId()));
 		} catch (Exception e) {
@@ -44,6 +171,12 @@ public class PermissionManager extends SocialEngineConnector {
 					user.getId(), profile.getId());
 			logger.error(msg, e);
 			throw new SmartCampusException(msg);
+		} finally {
+			RequestMetrics.stage(Stage.SOCIAL, start);
 		}
 	}
+
+	private static List<String> key(String userSocialId, String profileSocialId) {
+		return Arrays.asList(userSocialId, profileSocialId);
+	}
 }
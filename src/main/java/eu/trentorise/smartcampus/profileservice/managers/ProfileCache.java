@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.managers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import eu.trentorise.smartcampus.profileservice.cache.ExpiringCache;
+import eu.trentorise.smartcampus.profileservice.metrics.MetricsSource;
+import eu.trentorise.smartcampus.profileservice.metrics.MetricsWriter;
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+import eu.trentorise.smartcampus.profileservice.storage.ProfileStorage;
+
+/**
+ * Read-through cache of the extended profiles keyed by userId and profileId.
+ * Every write of a profile must invalidate the corresponding entry. A profile
+ * read from the storage is not cached if its entry was invalidated while it
+ * was being read, so that a read racing with a write cannot cache the old
+ * profile. The callers receive copies of the cached profiles and can modify
+ * them freely.
+ */
+@Component
+public class ProfileCache implements MetricsSource {
+
+	@Autowired
+	private ProfileStorage storage;
+
+	@Value("${profileservice.cache.profile.size:10000}")
+	private int maxSize;
+
+	@Value("${profileservice.cache.profile.ttl:30}")
+	private long ttlSeconds;
+
+	/**
+	 * number of generation counters, the keys sharing a counter may skip
+	 * some fills needlessly
+	 */
+	private static final int GENERATIONS = 1024;
+
+	private ExpiringCache<List<String>, ExtendedProfile> cache;
+
+	/**
+	 * invalidations of the keys by hash
+	 */
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+
+	@PostConstruct
+	public void init() {
+		cache = new ExpiringCache<List<String>, ExtendedProfile>(maxSize, ttlSeconds * 1000);
+	}
+
+	/**
+	 * @param userId
+	 * @param profileId
+	 * @return a copy of the extended profile, read from the storage if not
+	 *         cached
+	 */
+	public ExtendedProfile findExtendedProfile(String userId, String profileId) {
+		List<String> key = key(userId, profileId);
+		ExtendedProfile profile = cache.get(key);
+		if (profile == null) {
+			int slot = slot(key);
+			long generation = generations.get(slot);
+			profile = storage.findExtendedProfile(userId, profileId);
+			if (profile == null) {
+				return null;
+			}
+			synchronized (cache) {
+				if (generations.get(slot) == generation) {
+					cache.put(key, profile);
+				}
+			}
+		}
+		return copy(profile);
+	}
+
+	/**
+	 * Removes the cached profile, to be called after the profile is created,
+	 * updated or deleted
+	 */
+	public void invalidate(String userId, String profileId) {
+		List<String> key = key(userId, profileId);
+		synchronized (cache) {
+			generations.incrementAndGet(slot(key));
+			cache.invalidate(key);
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (cache) {
+			for (int i = 0; i < GENERATIONS; i++) {
+				generations.incrementAndGet(i);
+			}
+			cache.invalidateAll();
+		}
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public long getHits() {
+		return cache.getHits();
+	}
+
+	public long getMisses() {
+		return cache.getMisses();
+	}
+
+	public long getEvictions() {
+		return cache.getEvictions();
+	}
+
+	@Override
+	public void writeMetrics(MetricsWriter writer) {
+		writer.gauge("profile_cache_size", "Cached extended profiles", size());
+		writer.counter("profile_cache_hits_total", "Extended profile cache hits", getHits());
+		writer.counter("profile_cache_misses_total", "Extended profile cache misses", getMisses());
+		writer.counter("profile_cache_evictions_total", "Extended profile cache evictions", getEvictions());
+	}
+
+	private static List<String> key(String userId, String profileId) {
+		return Arrays.asList(userId, profileId);
+	}
+
+	private static int slot(List<String> key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % GENERATIONS;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ExtendedProfile copy(ExtendedProfile profile) {
+		ExtendedProfile copy = new ExtendedProfile();
+		copy.setId(profile.getId());
+		copy.setUser(profile.getUser());
+		copy.setVersion(profile.getVersion());
+		copy.setUpdateTime(profile.getUpdateTime());
+		copy.setUserId(profile.getUserId());
+		copy.setProfileId(profile.getProfileId());
+		copy.setSocialId(profile.getSocialId());
+		copy.setContent((Map<String, Object>) copyValue(profile.getContent()));
+		return copy;
+	}
+
+	/**
+	 * @return a deep copy of the maps and lists of a profile content
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object copyValue(Object value) {
+		if (value instanceof Map) {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+				map.put(entry.getKey(), copyValue(entry.getValue()));
+			}
+			return map;
+		}
+		if (value instanceof List) {
+			List<Object> list = new ArrayList<Object>();
+			for (Object item : (List<Object>) value) {
+				list.add(copyValue(item));
+			}
+			return list;
+		}
+		return value;
+	}
+}
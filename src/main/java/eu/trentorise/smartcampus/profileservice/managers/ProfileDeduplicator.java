@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.managers;
+
+import it.unitn.disi.sweb.webapi.client.WebApiException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import eu.trentorise.smartcampus.common.SemanticHelper;
+import eu.trentorise.smartcampus.presentation.common.exception.DataException;
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+import eu.trentorise.smartcampus.profileservice.storage.ProfileStorage;
+import eu.trentorise.smartcampus.social.SocialEngineConnector;
+
+/**
+ * Registers the (userId, profileId) pair of every existing profile and removes
+ * the duplicate profiles created before the pairs were reserved. For each
+ * pair the most recently updated profile is kept, the others are deleted
+ * together with their social entity. The deduplication is an administrative
+ * operation, started explicitly; a dry run only reports the duplicates.
+ * Once a real run completes the pairs are known to be complete. The pairs
+ * still owned by a profile that was never stored, left by a create that died
+ * before releasing them, are released as well.
+ */
+@Component
+public class ProfileDeduplicator extends SocialEngineConnector {
+
+	private static final Logger logger = Logger.getLogger(ProfileDeduplicator.class);
+
+	@Autowired
+	private ProfileStorage storage;
+
+	@Autowired
+	private ProfileManager profileManager;
+
+	/**
+	 * profiles read at a time
+	 */
+	@Value("${profileservice.dedup.pageSize:500}")
+	private int pageSize;
+
+	/**
+	 * milliseconds to wait after each page, to throttle the load on the
+	 * storage
+	 */
+	@Value("${profileservice.dedup.pause:100}")
+	private long pause;
+
+	/**
+	 * seconds after which a pair owned by a profile never stored is released:
+	 * the pairs reserved more recently may belong to a create still in
+	 * progress
+	 */
+	@Value("${profileservice.key.reclaimAfter:3600}")
+	private long reclaimAfter;
+
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	private volatile DedupReport report;
+
+	/**
+	 * Starts a deduplication in background
+	 * 
+	 * @param dryRun
+	 *            if true the duplicates are only reported
+	 * @return false if a deduplication is already running
+	 */
+	public boolean start(final boolean dryRun) {
+		if (!running.compareAndSet(false, true)) {
+			return false;
+		}
+		final DedupReport current = new DedupReport(dryRun);
+		report = current;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					deduplicate(current);
+				} finally {
+					running.set(false);
+				}
+			}
+		}, "profile-dedup");
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
+
+	/**
+	 * @return the report of the running or of the last deduplication, null
+	 *         if never started
+	 */
+	public DedupReport getReport() {
+		return report;
+	}
+
+	/**
+	 * Scans all the profiles, reserving the pairs of the profiles kept and
+	 * deleting the duplicates unless the run is a dry run
+	 * 
+	 * @param report
+	 *            updated while the scan proceeds
+	 */
+	public void deduplicate(DedupReport report) {
+		try {
+			Iterator<ExtendedProfile> profiles = storage.iterateAllExtendedProfiles(pageSize, "id", "userId",
+					"profileId", "socialId");
+			while (profiles.hasNext()) {
+				ExtendedProfile p = profiles.next();
+				String survivor = survivor(p);
+				if (p.getId().equals(survivor)) {
+					if (!report.isDryRun()) {
+						claim(p);
+					}
+				} else {
+					report.addDuplicate(p.getId());
+					if (!report.isDryRun()) {
+						remove(p);
+					}
+				}
+				if (report.scanned() % pageSize == 0 && pause > 0) {
+					Thread.sleep(pause);
+				}
+			}
+			releaseOrphans(report);
+			if (!report.isDryRun()) {
+				storage.markProfileKeysComplete();
+			}
+			logger.info(String.format("Extended profile deduplication completed, dry run: %s, scanned: %d, "
+					+ "duplicates: %d, orphaned pairs: %d", report.isDryRun(), report.getScanned(),
+					report.getDuplicates(), report.getOrphans()));
+		} catch (Exception e) {
+			logger.error("Exception deduplicating extended profiles", e);
+			report.setError(e.toString());
+		} finally {
+			report.complete();
+		}
+	}
+
+	/**
+	 * Releases, unless the run is a dry run, the pairs owned by profiles that
+	 * do not exist and were reserved more than reclaimAfter seconds ago
+	 */
+	private void releaseOrphans(DedupReport report) throws InterruptedException {
+		long before = System.currentTimeMillis() - reclaimAfter * 1000;
+		Iterator<String> owners = storage.iterateProfileKeyOwners(pageSize);
+		List<String> page = new ArrayList<String>();
+		while (owners.hasNext()) {
+			String owner = owners.next();
+			// the pairs of the existing profiles may have ids of other forms
+			if (ObjectId.isValid(owner) && new ObjectId(owner).getTime() < before) {
+				page.add(owner);
+			}
+			if (page.size() == pageSize) {
+				releaseOrphans(page, report);
+				page.clear();
+				if (pause > 0) {
+					Thread.sleep(pause);
+				}
+			}
+		}
+		releaseOrphans(page, report);
+	}
+
+	private void releaseOrphans(List<String> owners, DedupReport report) {
+		Set<String> live = storage.findLiveExtendedProfileIds(owners);
+		for (String owner : owners) {
+			if (!live.contains(owner)) {
+				report.addOrphan();
+				if (!report.isDryRun()) {
+					logger.warn("Releasing the pair of extended profile never stored " + owner);
+					storage.releaseProfileKey(owner);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return id of the profile to keep among the live profiles with the same
+	 *         pair of the given one: the most recently updated, the greatest
+	 *         id on equal update times
+	 */
+	private String survivor(ExtendedProfile p) {
+		List<ExtendedProfile> copies = storage.findExtendedProfileCopies(p.getUserId(), p.getProfileId());
+		ExtendedProfile survivor = null;
+		for (ExtendedProfile copy : copies) {
+			if (survivor == null || copy.getUpdateTime() > survivor.getUpdateTime()
+					|| (copy.getUpdateTime() == survivor.getUpdateTime() && copy.getId().compareTo(survivor.getId()) > 0)) {
+				survivor = copy;
+			}
+		}
+		// deleted in the meanwhile
+		return survivor == null ? p.getId() : survivor.getId();
+	}
+
+	/**
+	 * Assigns the pair to the profile kept, taking it from the duplicate or
+	 * the deleted profile owning it
+	 */
+	private void claim(ExtendedProfile p) {
+		for (int attempt = 0; attempt < 3; attempt++) {
+			if (storage.reserveProfileKey(p.getUserId(), p.getProfileId(), p.getId())) {
+				return;
+			}
+			String owner = storage.findProfileKeyOwner(p.getUserId(), p.getProfileId());
+			if (p.getId().equals(owner)) {
+				return;
+			}
+			if (owner != null && storage.moveProfileKey(p.getUserId(), p.getProfileId(), owner, p.getId())) {
+				return;
+			}
+		}
+		logger.warn(String.format("Cannot reserve the pair of extended profile %s userId:%s, profileId:%s",
+				p.getId(), p.getUserId(), p.getProfileId()));
+	}
+
+	private void remove(ExtendedProfile p) {
+		logger.warn(String.format("Removing duplicate extended profile %s userId:%s, profileId:%s", p.getId(),
+				p.getUserId(), p.getProfileId()));
+		try {
+			if (p.getSocialId() != null
+					&& !SemanticHelper.deleteEntity(socialEngineClient, Long.parseLong(p.getSocialId()))) {
+				logger.warn(String.format("Error deleting entity %s bonded to extended profile %s",
+						p.getSocialId(), p.getId()));
+			}
+		} catch (WebApiException e) {
+			logger.warn(String.format("Error deleting entity %s bond to extended profile %s", p.getSocialId(),
+					p.getId()), e);
+		}
+		try {
+			storage.deleteExtendedProfile(p.getId());
+			profileManager.invalidateDeleted(p);
+		} catch (DataException e) {
+			logger.error("Exception deleting duplicate extended profile " + p.getId(), e);
+		}
+	}
+}
@@ -17,18 +17,35 @@ package eu.trentorise.smartcampus.profileservice.managers;
 
 import it.unitn.disi.sweb.webapi.client.WebApiException;
 import it.unitn.disi.sweb.webapi.model.entity.Entity;
-import it.unitn.disi.sweb.webapi.model.entity.EntityBase;
 import it.unitn.disi.sweb.webapi.model.smartcampus.livetopics.LiveTopic;
 import it.unitn.disi.sweb.webapi.model.smartcampus.livetopics.LiveTopicContentType;
 import it.unitn.disi.sweb.webapi.model.smartcampus.livetopics.LiveTopicSource;
 import it.unitn.disi.sweb.webapi.model.smartcampus.livetopics.LiveTopicStatus;
 import it.unitn.disi.sweb.webapi.model.smartcampus.livetopics.LiveTopicSubject;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import eu.trentorise.smartcampus.common.SemanticHelper;
@@ -36,7 +53,13 @@ import eu.trentorise.smartcampus.exceptions.AlreadyExistException;
 import eu.trentorise.smartcampus.exceptions.SmartCampusException;
 import eu.trentorise.smartcampus.presentation.common.exception.DataException;
 import eu.trentorise.smartcampus.presentation.common.exception.NotFoundException;
+import eu.trentorise.smartcampus.profileservice.cache.ExpiringCache;
+import eu.trentorise.smartcampus.profileservice.metrics.RequestMetrics;
+import eu.trentorise.smartcampus.profileservice.metrics.RequestMetrics.Stage;
 import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+import eu.trentorise.smartcampus.profileservice.model.ProfileOperation;
+import eu.trentorise.smartcampus.profileservice.model.ProfileOperationResult;
+import eu.trentorise.smartcampus.profileservice.storage.ConcurrentUpdateException;
 import eu.trentorise.smartcampus.profileservice.storage.ProfileStorage;
 import eu.trentorise.smartcampus.social.SocialEngineConnector;
 import eu.trentorise.smartcampus.social.model.User;
@@ -57,7 +80,84 @@ public class ProfileManager extends SocialEngineConnector {
 	@Autowired
 	private ProfileStorage storage;
 
-	private Long profileType;
+	@Autowired
+	private ProfileCache profileCache;
+
+	@Autowired
+	private ProfileTypeResolver profileTypeResolver;
+
+	@Autowired
+	private SocialLinkManager socialLinkManager;
+
+	@Autowired
+	private PermissionManager permissionManager;
+
+	@Value("${profileservice.cache.shared.size:10000}")
+	private int sharedCacheSize;
+
+	@Value("${profileservice.cache.shared.ttl:60}")
+	private long sharedCacheTtl;
+
+	/**
+	 * if true an expired list of shared entities is returned immediately while
+	 * a background task reads the new one
+	 */
+	@Value("${profileservice.cache.shared.staleWhileRevalidate:false}")
+	private boolean staleWhileRevalidate;
+
+	@Value("${profileservice.cache.shared.refreshThreads:2}")
+	private int refreshThreads;
+
+	/**
+	 * number of generation counters of the shared entities, the actors
+	 * sharing a counter may skip some fills needlessly
+	 */
+	private static final int SHARED_GENERATIONS = 1024;
+
+	/**
+	 * shared entity ids by actor
+	 */
+	private ExpiringCache<String, List<Long>> sharedCache;
+
+	/**
+	 * actors whose cached shared entities include the entity, by entity id;
+	 * guarded by the lock of sharedCache, which updates it on removals
+	 */
+	private final Map<Long, Set<String>> sharedOwners = new HashMap<Long, Set<String>>();
+
+	/**
+	 * invalidations of the shared entities of the actors by hash
+	 */
+	private final AtomicLongArray sharedGenerations = new AtomicLongArray(SHARED_GENERATIONS);
+
+	private ThreadPoolExecutor refreshExecutor;
+
+	private Set<String> refreshing = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	@PostConstruct
+	public void initSharedCache() {
+		sharedCache = new ExpiringCache<String, List<Long>>(sharedCacheSize, sharedCacheTtl * 1000);
+		sharedCache.setRemovalListener(new ExpiringCache.RemovalListener<String, List<Long>>() {
+			@Override
+			public void removed(String ownerId, List<Long> sharedIds) {
+				for (Long id : sharedIds) {
+					Set<String> owners = sharedOwners.get(id);
+					if (owners != null && owners.remove(ownerId) && owners.isEmpty()) {
+						sharedOwners.remove(id);
+					}
+				}
+			}
+		});
+		refreshExecutor = new ThreadPoolExecutor(refreshThreads, refreshThreads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(sharedCacheSize));
+	}
+
+	@PreDestroy
+	public void destroySharedCache() {
+		refreshExecutor.shutdownNow();
+	}
+
 	/**
 	 * persists a custom profile for the given user
 	 * 
@@ -66,7 +166,8 @@ public class ProfileManager extends SocialEngineConnector {
 	 * @param extProfile
 	 *            custom profile to persist
 	 * 
-	 * @return the stored custom profile
+	 * @return the stored custom profile, in async mode its socialId is set
+	 *         later by the {@link SocialLinkManager}
 	 * @throws AlreadyExistException
 	 * @throws SmartCampusException
 	 */
@@ -74,10 +175,7 @@ public class ProfileManager extends SocialEngineConnector {
 			throws ProfileServiceException, AlreadyExistException,
 			SmartCampusException {
 
-		ExtendedProfile present = storage.findExtendedProfile(
-				extProfile.getUserId(), 
-				extProfile.getProfileId());
-		if (present != null) {
+		if (!reserve(extProfile)) {
 			String msg = String
 					.format("extended profile exists userId:%s, profileId:%s",
 							extProfile.getUserId(), 
@@ -86,6 +184,195 @@ public class ProfileManager extends SocialEngineConnector {
 			throw new AlreadyExistException(msg);
 		}
 
+		boolean stored = false;
+		try {
+			store(user, extProfile);
+			stored = true;
+			profileCache.invalidate(extProfile.getUserId(), extProfile.getProfileId());
+			return extProfile;
+		} catch (DataException e) {
+			logger.error("Exception storing extended profile", e);
+			throw new SmartCampusException(
+					"Exceptions storing extended profile");
+		} finally {
+			if (!stored) {
+				storage.releaseProfileKey(extProfile.getId());
+			}
+		}
+	}
+
+	/**
+	 * Assigns the profile id and reserves its (userId, profileId) pair with a
+	 * single insert, so that concurrent creates of the same profile cannot
+	 * both succeed. A pair is never taken from another create, which may
+	 * still be storing its profile: the pairs left by a create that died
+	 * before releasing them are released by the {@link ProfileDeduplicator}.
+	 * Until the deduplicator has registered the pairs of the existing
+	 * profiles their presence is also counted.
+	 * 
+	 * @return false if the profile already exists
+	 */
+	private boolean reserve(ExtendedProfile extProfile) {
+		if (extProfile.getId() == null) {
+			extProfile.setId(new ObjectId().toString());
+		}
+		if (!storage.reserveProfileKey(extProfile.getUserId(), extProfile.getProfileId(), extProfile.getId())) {
+			return false;
+		}
+		if (!storage.isProfileKeysComplete()
+				&& storage.existsExtendedProfile(extProfile.getUserId(), extProfile.getProfileId())) {
+			storage.releaseProfileKey(extProfile.getId());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Executes a batch of profile operations. The profiles already present
+	 * are read with one bulk query for the whole batch and the updates of
+	 * present profiles are written with bulk update commands, see
+	 * {@link ProfileStorage#updateExtendedProfileContents(java.util.Collection)};
+	 * the updates it leaves are written one at a time. Every operation is
+	 * then reported independently. Creates are stored one at a time, each
+	 * with its reservation and social entity; deletes go through
+	 * {@link #deleteExtendedProfile(ExtendedProfile)}.
+	 * 
+	 * @param operations
+	 *            operations to execute, at most one for each userId and
+	 *            profileId
+	 * @param users
+	 *            owners of the profiles to create by userId
+	 * @return one result for each operation, in the same order
+	 */
+	public List<ProfileOperationResult> execute(List<ProfileOperation> operations, Map<String, User> users) {
+		Set<String> userIds = new HashSet<String>();
+		for (ProfileOperation op : operations) {
+			if (op.getUserId() != null) userIds.add(op.getUserId());
+		}
+		Map<List<String>, ExtendedProfile> present = new HashMap<List<String>, ExtendedProfile>();
+		for (ExtendedProfile p : storage.findExtendedProfilesByUsers(userIds, null, "id", "userId", "profileId",
+				"socialId", "updateTime")) {
+			present.put(Arrays.asList(p.getUserId(), p.getProfileId()), p);
+		}
+
+		// the first operation on each pair is the one executed
+		Set<List<String>> seen = new HashSet<List<String>>();
+		List<ExtendedProfile> updates = new ArrayList<ExtendedProfile>();
+		for (ProfileOperation op : operations) {
+			if (op.getType() == null || op.getUserId() == null || op.getProfileId() == null) continue;
+			List<String> key = Arrays.asList(op.getUserId(), op.getProfileId());
+			ExtendedProfile existing = present.get(key);
+			if (seen.add(key) && op.getType() == ProfileOperation.Type.UPDATE && existing != null) {
+				ExtendedProfile update = new ExtendedProfile();
+				update.setUserId(op.getUserId());
+				update.setProfileId(op.getProfileId());
+				update.setContent(op.getContent());
+				update.setUpdateTime(existing.getUpdateTime());
+				updates.add(update);
+			}
+		}
+		Set<List<String>> updated = updates.isEmpty() ? Collections.<List<String>> emptySet() : storage
+				.updateExtendedProfileContents(updates);
+
+		Set<List<String>> done = new HashSet<List<String>>();
+		List<ProfileOperationResult> results = new ArrayList<ProfileOperationResult>();
+		for (ProfileOperation op : operations) {
+			results.add(execute(op, users.get(op.getUserId()), present, updated, done));
+		}
+		return results;
+	}
+
+	private ProfileOperationResult execute(ProfileOperation op, User user,
+			Map<List<String>, ExtendedProfile> present, Set<List<String>> updated, Set<List<String>> done) {
+		if (op.getType() == null || op.getUserId() == null || op.getProfileId() == null) {
+			return new ProfileOperationResult(op, HttpServletResponse.SC_BAD_REQUEST,
+					"type, userId and profileId are mandatory");
+		}
+		List<String> key = Arrays.asList(op.getUserId(), op.getProfileId());
+		if (!done.add(key)) {
+			return new ProfileOperationResult(op, HttpServletResponse.SC_BAD_REQUEST,
+					"more than one operation on the same profile");
+		}
+		ExtendedProfile existing = present.get(key);
+		try {
+			switch (op.getType()) {
+			case CREATE:
+				if (existing != null) {
+					return new ProfileOperationResult(op, HttpServletResponse.SC_BAD_REQUEST,
+							"extended profile exists");
+				}
+				if (user == null) {
+					return new ProfileOperationResult(op, HttpServletResponse.SC_BAD_REQUEST,
+							"No user found for id " + op.getUserId());
+				}
+				ExtendedProfile extProfile = new ExtendedProfile();
+				extProfile.setProfileId(op.getProfileId());
+				extProfile.setUserId(op.getUserId());
+				extProfile.setContent(op.getContent());
+				extProfile.setUser(op.getUserId());
+				extProfile.setUpdateTime(System.currentTimeMillis());
+				if (!reserve(extProfile)) {
+					return new ProfileOperationResult(op, HttpServletResponse.SC_BAD_REQUEST,
+							"extended profile exists");
+				}
+				boolean stored = false;
+				try {
+					store(user, extProfile);
+					stored = true;
+				} finally {
+					if (!stored) {
+						storage.releaseProfileKey(extProfile.getId());
+					}
+				}
+				break;
+			case UPDATE:
+				if (updated.contains(key)) {
+					break;
+				}
+				// not updated by the bulk update, written meanwhile or deleted
+				if (existing == null
+						|| storage.updateExtendedProfileContent(op.getUserId(), op.getProfileId(), op.getContent()) < 0) {
+					return new ProfileOperationResult(op, HttpServletResponse.SC_BAD_REQUEST,
+							"extended profile not found");
+				}
+				break;
+			case DELETE:
+				if (existing != null) {
+					deleteExtendedProfile(existing);
+				}
+				break;
+			}
+			profileCache.invalidate(op.getUserId(), op.getProfileId());
+			return new ProfileOperationResult(op, HttpServletResponse.SC_OK, null);
+		} catch (ConcurrentUpdateException e) {
+			logger.warn(e.getMessage());
+			return new ProfileOperationResult(op, HttpServletResponse.SC_CONFLICT, e.getMessage());
+		} catch (Exception e) {
+			String msg = String.format("Exception executing %s of extended profile userId:%s, profileId:%s",
+					op.getType(), op.getUserId(), op.getProfileId());
+			logger.error(msg, e);
+			return new ProfileOperationResult(op, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, msg);
+		}
+	}
+
+	/**
+	 * Stores a new profile with its social entity. In async mode the entity is
+	 * created later by the {@link SocialLinkManager}.
+	 */
+	private void store(User user, ExtendedProfile extProfile) throws SmartCampusException, DataException {
+		if (socialLinkManager.isAsync()) {
+			storage.storeObject(extProfile);
+			socialLinkManager.linkLater(user, extProfile);
+		} else {
+			createSocialEntity(user, extProfile);
+			storage.storeObject(extProfile);
+			// the entities of the owner may be listed among the shared ones
+			invalidateShared(user.getSocialId());
+		}
+	}
+
+	private void createSocialEntity(User user, ExtendedProfile extProfile) throws SmartCampusException {
+		long start = System.nanoTime();
 		try {
 			Entity entity = SemanticHelper.createEntity(
 					socialEngineClient,
@@ -98,14 +385,8 @@ public class ProfileManager extends SocialEngineConnector {
 			logger.error("Exception creating profile entity", e1);
 			throw new SmartCampusException(
 					"Exception creating social entity for profile");
-		}
-		try {
-			storage.storeObject(extProfile);
-			return extProfile;
-		} catch (DataException e) {
-			logger.error("Exception storing extended profile", e);
-			throw new SmartCampusException(
-					"Exceptions storing extended profile");
+		} finally {
+			RequestMetrics.stage(Stage.SOCIAL, start);
 		}
 	}
 
@@ -134,16 +415,19 @@ public class ProfileManager extends SocialEngineConnector {
 	}
 
 	/**
+	 * Deletes the given profile document, by its id, and its social entity
 	 * 
 	 * @param extProfile
-	 * @return
+	 *            with at least its id, userId, profileId and socialId
+	 * @return true
 	 * @throws SmartCampusException
 	 */
 	public boolean deleteExtendedProfile(ExtendedProfile extProfile)
 			throws SmartCampusException {
 		try {
+			long start = System.nanoTime();
 			try {
-				if (!SemanticHelper.deleteEntity(socialEngineClient,
+				if (extProfile.getSocialId() != null && !SemanticHelper.deleteEntity(socialEngineClient,
 						Long.parseLong(extProfile.getSocialId()))) {
 					logger.warn(String
 							.format("Error deleting entity %s bonded to extended profile %s",
@@ -155,9 +439,13 @@ public class ProfileManager extends SocialEngineConnector {
 				logger.warn(String
 						.format("Error deleting entity %s bond to extended profile %s",
 								extProfile.getSocialId(), extProfile.getId()));
+			} finally {
+				RequestMetrics.stage(Stage.SOCIAL, start);
 			}
 
-			storage.deleteExtendedProfile(extProfile.getUserId(), extProfile.getProfileId());
+			// the given copy, the pair may still have duplicates
+			storage.deleteExtendedProfile(extProfile.getId());
+			invalidateDeleted(extProfile);
 			return true;
 		} catch (DataException e) {
 			String msg = String.format(
@@ -173,28 +461,17 @@ public class ProfileManager extends SocialEngineConnector {
 	 * @return list of profile entityIds shared with the specified user
 	 */
 	public List<Long> getShared(String ownerId) {
-		try {
-			LiveTopic filter = new LiveTopic();
-			LiveTopicSource filterSource = new LiveTopicSource();
-			Long actorId = Long.parseLong(ownerId);
-			if (actorId > 0) {
-				filter.setActorId(actorId); // <-- mandatory
+		ExpiringCache.Entry<List<Long>> entry = sharedCache.getEntry(ownerId, staleWhileRevalidate);
+		if (entry != null) {
+			if (entry.isExpired()) {
+				refreshShared(ownerId);
 			}
-			filterSource.setAllKnownCommunities(true);
-			filterSource.setAllKnownUsers(true);
-			filterSource.setAllCommunities(true);
-			filterSource.setAllUsers(true);
-			
-			filter.setSource(filterSource);
-			LiveTopicSubject subject = new LiveTopicSubject();
-			subject.setAllSubjects(true); // <-- important
-			filter.setSubjects(Collections.singleton(subject));
-
-			LiveTopicContentType type = new LiveTopicContentType();
-			type.setEntityTypeIds(Collections.singleton(getProfileType(actorId)));
-			filter.setType(type); // <-- mandatory
-			filter.setStatus(LiveTopicStatus.ACTIVE); // <-- mandatory
-			List<Long> sharedIds = socialEngineClient.computeEntitiesForLiveTopic(filter, null, null);
+			return entry.getValue();
+		}
+		try {
+			long generation = sharedGenerations.get(sharedSlot(ownerId));
+			List<Long> sharedIds = computeShared(ownerId);
+			putShared(ownerId, sharedIds, generation);
 			return sharedIds;
 		} catch (WebApiException e) {
 			logger.error("Exception getting user shared content", e);
@@ -202,23 +479,144 @@ public class ProfileManager extends SocialEngineConnector {
 		}
 	}
 
-	private Long getProfileType(Long actorId) throws WebApiException {
-		if (profileType == null) {
-			profileType = socialEngineClient.readEntityType("profile", getEntityBase(actorId).getKbLabel()).getId();
+	/**
+	 * Drops the cached data of a deleted profile: the profile, the
+	 * permissions on its entity and the shared entities including it
+	 * 
+	 * @param deleted
+	 *            the deleted profile, with at least its userId, profileId and
+	 *            socialId
+	 */
+	public void invalidateDeleted(ExtendedProfile deleted) {
+		profileCache.invalidate(deleted.getUserId(), deleted.getProfileId());
+		if (deleted.getSocialId() != null) {
+			permissionManager.invalidateProfilePermissions(deleted.getSocialId());
+			invalidateSharedEntity(Long.parseLong(deleted.getSocialId()));
+		}
+	}
+
+	/**
+	 * Drops the cached entities shared with the given user, to be called when
+	 * the sharing of the user changes. Sharing changed directly in the social
+	 * engine is seen after at most profileservice.cache.shared.ttl seconds.
+	 * 
+	 * @param ownerId
+	 */
+	public void invalidateShared(String ownerId) {
+		synchronized (sharedCache) {
+			sharedGenerations.incrementAndGet(sharedSlot(ownerId));
+			sharedCache.invalidate(ownerId);
+		}
+	}
+
+	/**
+	 * Drops the cached entities shared with all the users
+	 */
+	public void invalidateAllShared() {
+		synchronized (sharedCache) {
+			for (int i = 0; i < SHARED_GENERATIONS; i++) {
+				sharedGenerations.incrementAndGet(i);
+			}
+			sharedCache.invalidateAll();
 		}
-		return profileType;
 	}
-	
-	private EntityBase getEntityBase(Long actorId) throws WebApiException {
-		it.unitn.disi.sweb.webapi.model.smartcampus.social.User actor = socialEngineClient.readUser(actorId);
-		if (actor == null) {
-			throw new WebApiException("Actor with id " + actorId + " is not found.");
+
+	/**
+	 * Drops the cached entities shared with any user that include the given
+	 * entity, to be called when the entity is deleted. The users are found
+	 * through an index of the cached entities.
+	 * 
+	 * @param entityId
+	 */
+	public void invalidateSharedEntity(Long entityId) {
+		synchronized (sharedCache) {
+			Set<String> owners = sharedOwners.get(entityId);
+			if (owners == null) {
+				return;
+			}
+			for (String ownerId : new ArrayList<String>(owners)) {
+				invalidateShared(ownerId);
+			}
 		}
-		Long ebid = actor.getEntityBaseId();
-		if (ebid == null) {
-			throw new WebApiException("Actor with id " + actorId + " has null entitybase reference");
+	}
+
+	/**
+	 * Caches the entities shared with the user unless they were invalidated
+	 * since the given generation, while they were being computed
+	 */
+	private void putShared(String ownerId, List<Long> sharedIds, long generation) {
+		synchronized (sharedCache) {
+			if (sharedGenerations.get(sharedSlot(ownerId)) != generation) {
+				return;
+			}
+			sharedCache.put(ownerId, sharedIds);
+			for (Long id : sharedIds) {
+				Set<String> owners = sharedOwners.get(id);
+				if (owners == null) {
+					owners = new HashSet<String>();
+					sharedOwners.put(id, owners);
+				}
+				owners.add(ownerId);
+			}
+		}
+	}
+
+	private static int sharedSlot(String ownerId) {
+		return (ownerId.hashCode() & Integer.MAX_VALUE) % SHARED_GENERATIONS;
+	}
+
+	private void refreshShared(final String ownerId) {
+		if (!refreshing.add(ownerId)) {
+			return;
+		}
+		try {
+			refreshExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						long generation = sharedGenerations.get(sharedSlot(ownerId));
+						putShared(ownerId, computeShared(ownerId), generation);
+					} catch (Exception e) {
+						logger.warn("Exception refreshing shared content of user " + ownerId, e);
+					} finally {
+						refreshing.remove(ownerId);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			refreshing.remove(ownerId);
+		}
+	}
+
+	private List<Long> computeShared(String ownerId) throws WebApiException {
+		LiveTopic filter = new LiveTopic();
+		LiveTopicSource filterSource = new LiveTopicSource();
+		Long actorId = Long.parseLong(ownerId);
+		if (actorId > 0) {
+			filter.setActorId(actorId); // <-- mandatory
+		}
+		filterSource.setAllKnownCommunities(true);
+		filterSource.setAllKnownUsers(true);
+		filterSource.setAllCommunities(true);
+		filterSource.setAllUsers(true);
+		
+		filter.setSource(filterSource);
+		LiveTopicSubject subject = new LiveTopicSubject();
+		subject.setAllSubjects(true); // <-- important
+		filter.setSubjects(Collections.singleton(subject));
+
+		LiveTopicContentType type = new LiveTopicContentType();
+		type.setEntityTypeIds(Collections.singleton(profileTypeResolver.getProfileType(actorId)));
+		filter.setType(type); // <-- mandatory
+		filter.setStatus(LiveTopicStatus.ACTIVE); // <-- mandatory
+		long start = System.nanoTime();
+		List<Long> sharedIds;
+		try {
+			sharedIds = socialEngineClient.computeEntitiesForLiveTopic(filter, null, null);
+		} finally {
+			RequestMetrics.stage(Stage.SOCIAL, start);
 		}
-		return socialEngineClient.readEntityBase(ebid);
+		return sharedIds == null ? Collections.<Long> emptyList() : sharedIds;
 	}
 
 }
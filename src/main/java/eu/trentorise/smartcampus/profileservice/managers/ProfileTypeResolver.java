@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.managers;
+
+import it.unitn.disi.sweb.webapi.client.WebApiException;
+import it.unitn.disi.sweb.webapi.model.entity.EntityBase;
+import it.unitn.disi.sweb.webapi.model.entity.EntityType;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.stereotype.Component;
+
+import eu.trentorise.smartcampus.profileservice.cache.ExpiringCache;
+import eu.trentorise.smartcampus.profileservice.metrics.RequestMetrics;
+import eu.trentorise.smartcampus.profileservice.metrics.RequestMetrics.Stage;
+import eu.trentorise.smartcampus.social.SocialEngineConnector;
+
+/**
+ * Resolves the id of the social engine "profile" entity type. Types are
+ * memoized by KB label and each label is read from the social engine only
+ * once, also under concurrent requests. The KB label of each actor is cached
+ * for <code>profileservice.cache.kblabel.ttl</code> seconds, and concurrent
+ * lookups of the same actor share a single read, so a request reaches the
+ * social engine only for an actor not seen within the TTL. The labels listed
+ * in <code>profileservice.profiletype.preload</code>, none by default, are
+ * resolved at startup.
+ */
+@Component
+public class ProfileTypeResolver extends SocialEngineConnector implements
+		ApplicationListener<ContextRefreshedEvent> {
+
+	private static final Logger logger = Logger.getLogger(ProfileTypeResolver.class);
+
+	private static final String PROFILE_TYPE = "profile";
+
+	@Value("${profileservice.profiletype.preload:}")
+	private String preloadLabels;
+
+	@Value("${profileservice.cache.kblabel.size:10000}")
+	private int kbLabelCacheSize;
+
+	@Value("${profileservice.cache.kblabel.ttl:3600}")
+	private long kbLabelCacheTtl;
+
+	private ConcurrentMap<String, Future<Long>> types = new ConcurrentHashMap<String, Future<Long>>();
+
+	/**
+	 * KB label of the entity base of each actor
+	 */
+	private ExpiringCache<Long, String> kbLabels;
+
+	/**
+	 * KB label lookups in progress by actor
+	 */
+	private ConcurrentMap<Long, Future<String>> kbLabelLoads = new ConcurrentHashMap<Long, Future<String>>();
+
+	@PostConstruct
+	public void initKbLabelCache() {
+		kbLabels = new ExpiringCache<Long, String>(kbLabelCacheSize, kbLabelCacheTtl * 1000);
+	}
+
+	@Override
+	public void onApplicationEvent(ContextRefreshedEvent event) {
+		if (preloadLabels == null || preloadLabels.trim().isEmpty()) {
+			return;
+		}
+		for (String label : preloadLabels.split(",")) {
+			label = label.trim();
+			if (label.isEmpty()) continue;
+			try {
+				logger.info(String.format("Profile type for kb %s: %s", label, getProfileType(label)));
+			} catch (WebApiException e) {
+				logger.warn("Exception preloading profile type for kb " + label, e);
+			}
+		}
+	}
+
+	/**
+	 * @param actorId
+	 * @return the profile type id in the entity base of the given actor
+	 * @throws WebApiException
+	 */
+	public Long getProfileType(final Long actorId) throws WebApiException {
+		String kbLabel = kbLabels.get(actorId);
+		if (kbLabel == null) {
+			FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					String kbLabel = getEntityBase(actorId).getKbLabel();
+					kbLabels.put(actorId, kbLabel);
+					return kbLabel;
+				}
+			});
+			Future<String> load = kbLabelLoads.putIfAbsent(actorId, task);
+			if (load == null) {
+				load = task;
+				try {
+					task.run();
+				} finally {
+					// the label is now in the cache, or the load failed
+					kbLabelLoads.remove(actorId, task);
+				}
+			}
+			kbLabel = get(load, "kb label for actor " + actorId);
+		}
+		return getProfileType(kbLabel);
+	}
+
+	/**
+	 * @param kbLabel
+	 * @return the profile type id in the given KB
+	 * @throws WebApiException
+	 */
+	public Long getProfileType(final String kbLabel) throws WebApiException {
+		Future<Long> type = types.get(kbLabel);
+		if (type == null) {
+			FutureTask<Long> task = new FutureTask<Long>(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					long start = System.nanoTime();
+					EntityType entityType;
+					try {
+						entityType = socialEngineClient.readEntityType(PROFILE_TYPE, kbLabel);
+					} finally {
+						RequestMetrics.stage(Stage.SOCIAL, start);
+					}
+					if (entityType == null) {
+						throw new WebApiException("Entity type " + PROFILE_TYPE + " not found in kb " + kbLabel);
+					}
+					return entityType.getId();
+				}
+			});
+			type = types.putIfAbsent(kbLabel, task);
+			if (type == null) {
+				type = task;
+				task.run();
+			}
+		}
+		try {
+			return get(type, "profile type for kb " + kbLabel);
+		} catch (WebApiException e) {
+			// failed loads are not memoized
+			if (type.isDone()) {
+				types.remove(kbLabel, type);
+			}
+			throw e;
+		}
+	}
+
+	private static <T> T get(Future<T> load, String what) throws WebApiException {
+		try {
+			return load.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof WebApiException) {
+				throw (WebApiException) e.getCause();
+			}
+			throw new WebApiException("Exception reading " + what + ": " + e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WebApiException("Interrupted reading " + what);
+		}
+	}
+
+	private EntityBase getEntityBase(Long actorId) throws WebApiException {
+		long start = System.nanoTime();
+		try {
+			it.unitn.disi.sweb.webapi.model.smartcampus.social.User actor = socialEngineClient.readUser(actorId);
+			if (actor == null) {
+				throw new WebApiException("Actor with id " + actorId + " is not found.");
+			}
+			Long ebid = actor.getEntityBaseId();
+			if (ebid == null) {
+				throw new WebApiException("Actor with id " + actorId + " has null entitybase reference");
+			}
+			return socialEngineClient.readEntityBase(ebid);
+		} finally {
+			RequestMetrics.stage(Stage.SOCIAL, start);
+		}
+	}
+}
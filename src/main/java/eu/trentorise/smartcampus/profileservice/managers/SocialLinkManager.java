@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.managers;
+
+import it.unitn.disi.sweb.webapi.client.WebApiException;
+import it.unitn.disi.sweb.webapi.model.entity.Entity;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import eu.trentorise.smartcampus.common.SemanticHelper;
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+import eu.trentorise.smartcampus.profileservice.storage.PendingSocialLink;
+import eu.trentorise.smartcampus.profileservice.storage.ProfileStorage;
+import eu.trentorise.smartcampus.social.SocialEngineConnector;
+import eu.trentorise.smartcampus.social.model.User;
+
+/**
+ * Creates the social entities of the extended profiles in background. When
+ * <code>profileservice.social.async</code> is set, profiles are stored
+ * without socialId together with a {@link PendingSocialLink}; a bounded
+ * worker pool creates the entities and a periodic reconciler retries the
+ * failed ones with exponential backoff. The entity created is recorded on the
+ * link before being written to the profile, so that a retry reuses it
+ * instead of creating another one. After <code>maxAttempts</code> failures a
+ * link is no longer retried and is kept, with its last error, for
+ * inspection.
+ */
+@Component
+public class SocialLinkManager extends SocialEngineConnector {
+
+	private static final Logger logger = Logger.getLogger(SocialLinkManager.class);
+
+	@Autowired
+	private ProfileStorage storage;
+
+	@Autowired
+	private ProfileCache profileCache;
+
+	@Value("${profileservice.social.async:false}")
+	private boolean async;
+
+	@Value("${profileservice.social.async.threads:4}")
+	private int threads;
+
+	@Value("${profileservice.social.async.queueSize:1000}")
+	private int queueSize;
+
+	/**
+	 * seconds between two runs of the reconciler
+	 */
+	@Value("${profileservice.social.async.reconcileInterval:30}")
+	private long reconcileInterval;
+
+	/**
+	 * max pending links processed by a run of the reconciler
+	 */
+	@Value("${profileservice.social.async.batchSize:100}")
+	private int batchSize;
+
+	/**
+	 * seconds before the first retry, doubled at every failure
+	 */
+	@Value("${profileservice.social.async.backoff.initial:5}")
+	private long initialBackoff;
+
+	@Value("${profileservice.social.async.backoff.max:3600}")
+	private long maxBackoff;
+
+	/**
+	 * failures after which a link is no longer retried
+	 */
+	@Value("${profileservice.social.async.maxAttempts:10}")
+	private int maxAttempts;
+
+	/**
+	 * seconds a link is reserved for the worker processing it
+	 */
+	@Value("${profileservice.social.async.lease:60}")
+	private long lease;
+
+	private ThreadPoolExecutor workers;
+
+	private ScheduledExecutorService reconciler;
+
+	@PostConstruct
+	public void initWorkers() {
+		if (!async) {
+			return;
+		}
+		workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize));
+		reconciler = Executors.newSingleThreadScheduledExecutor();
+		reconciler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reconcile();
+				} catch (Exception e) {
+					logger.error("Exception reconciling pending social links", e);
+				}
+			}
+		}, reconcileInterval, reconcileInterval, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void destroyWorkers() {
+		if (reconciler != null) {
+			reconciler.shutdownNow();
+		}
+		if (workers != null) {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return true if social entities are created in background
+	 */
+	public boolean isAsync() {
+		return async;
+	}
+
+	/**
+	 * Registers a stored profile for the background creation of its social
+	 * entity. If the worker pool is full or not running the link is left to
+	 * {@link #reconcile()}.
+	 * 
+	 * @param user
+	 *            owner of the profile
+	 * @param extProfile
+	 *            stored profile, without socialId
+	 */
+	public void linkLater(User user, ExtendedProfile extProfile) {
+		final PendingSocialLink link = new PendingSocialLink();
+		link.setId(extProfile.getId());
+		link.setUserId(extProfile.getUserId());
+		link.setProfileId(extProfile.getProfileId());
+		link.setOwnerSocialId(user.getSocialId());
+		link.setNextAttempt(System.currentTimeMillis());
+		storage.storePendingSocialLink(link);
+		if (workers == null) {
+			return;
+		}
+		try {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					process(link.getId());
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.warn("Social link worker pool full, profile " + link.getId() + " left to the reconciler");
+		}
+	}
+
+	/**
+	 * Processes the pending links whose next attempt is due
+	 * 
+	 * @return number of links processed
+	 */
+	public int reconcile() {
+		List<PendingSocialLink> due = storage.findDuePendingSocialLinks(batchSize);
+		for (PendingSocialLink link : due) {
+			process(link.getId());
+		}
+		return due.size();
+	}
+
+	private void process(String linkId) {
+		PendingSocialLink link = storage.claimPendingSocialLink(linkId, lease * 1000);
+		if (link == null) {
+			// not due or taken by another worker
+			return;
+		}
+		try {
+			String socialId = link.getSocialId();
+			if (socialId == null) {
+				Entity entity = SemanticHelper.createEntity(
+						socialEngineClient,
+						Long.parseLong(link.getOwnerSocialId()),
+						"profile",
+						"profileId:" + link.getProfileId(),
+						null, null, null);
+				socialId = entity.getId().toString();
+				link.setSocialId(socialId);
+				storage.setPendingSocialLinkEntity(link.getId(), socialId);
+			}
+			if (storage.setSocialId(link.getId(), socialId)) {
+				profileCache.invalidate(link.getUserId(), link.getProfileId());
+			} else {
+				// profile deleted in the meantime
+				SemanticHelper.deleteEntity(socialEngineClient, Long.parseLong(socialId));
+			}
+			storage.removePendingSocialLink(link.getId());
+		} catch (Exception e) {
+			int attempts = link.getAttempts() + 1;
+			link.setAttempts(attempts);
+			link.setLastError(e.getMessage());
+			if (attempts >= maxAttempts) {
+				logger.error(String.format("Exception creating social entity of profile %s, attempt %d, "
+						+ "no more retries", link.getId(), attempts), e);
+				link.setNextAttempt(Long.MAX_VALUE);
+			} else {
+				long backoff = Math.min(initialBackoff << Math.min(attempts - 1, 30), maxBackoff);
+				logger.warn(String.format("Exception creating social entity of profile %s, attempt %d, "
+						+ "retry in %ds", link.getId(), attempts, backoff), e);
+				link.setNextAttempt(System.currentTimeMillis() + backoff * 1000);
+			}
+			storage.storePendingSocialLink(link);
+		}
+	}
+}
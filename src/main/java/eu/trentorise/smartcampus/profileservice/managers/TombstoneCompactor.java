@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.managers;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import eu.trentorise.smartcampus.profileservice.metrics.MetricsSource;
+import eu.trentorise.smartcampus.profileservice.metrics.MetricsWriter;
+import eu.trentorise.smartcampus.profileservice.storage.ProfileStorage;
+import eu.trentorise.smartcampus.profileservice.storage.PurgeResult;
+
+/**
+ * Periodically removes the deleted profiles kept by the sync storage once they
+ * are older than the sync horizon. Profiles are removed in batches with a
+ * pause between them, so that the compaction does not compete with the
+ * service load. The horizon is recorded before purging, and the purge waits
+ * until every instance has read it, so that clients synchronized before it
+ * are asked for a full synchronization instead of missing deletions.
+ */
+@Component
+public class TombstoneCompactor implements MetricsSource {
+
+	private static final Logger logger = Logger.getLogger(TombstoneCompactor.class);
+
+	@Autowired
+	private ProfileStorage storage;
+
+	@Value("${profileservice.compaction.enabled:false}")
+	private boolean enabled;
+
+	/**
+	 * days a deleted profile is kept for the clients to synchronize
+	 */
+	@Value("${profileservice.compaction.horizon:90}")
+	private long horizon;
+
+	/**
+	 * hours between two runs
+	 */
+	@Value("${profileservice.compaction.interval:24}")
+	private long interval;
+
+	@Value("${profileservice.compaction.batchSize:500}")
+	private int batchSize;
+
+	/**
+	 * milliseconds to wait after each batch
+	 */
+	@Value("${profileservice.compaction.pause:200}")
+	private long pause;
+
+	private ScheduledExecutorService scheduler;
+
+	private final AtomicLong purgedDocuments = new AtomicLong();
+
+	private final AtomicLong purgedBytes = new AtomicLong();
+
+	private volatile long lastRun;
+
+	@PostConstruct
+	public void init() {
+		if (!enabled) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (Exception e) {
+					logger.error("Exception compacting deleted profiles", e);
+				}
+			}
+		}, interval, interval, TimeUnit.HOURS);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Removes all the deleted profiles older than the sync horizon
+	 * 
+	 * @return documents and bytes removed by this run
+	 * @throws InterruptedException
+	 */
+	public PurgeResult compact() throws InterruptedException {
+		long before = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(horizon);
+		if (before > storage.getPurgeHorizon()) {
+			storage.recordPurgeHorizon(before);
+			Thread.sleep(ProfileStorage.PURGE_HORIZON_REFRESH);
+		}
+		long documents = 0;
+		long bytes = 0;
+		PurgeResult batch;
+		do {
+			batch = storage.purgeDeletedExtendedProfiles(before, batchSize);
+			documents += batch.getDocuments();
+			bytes += batch.getBytes();
+			if (batch.getDocuments() > 0 && pause > 0) {
+				Thread.sleep(pause);
+			}
+		} while (batch.getDocuments() >= batchSize);
+
+		purgedDocuments.addAndGet(documents);
+		purgedBytes.addAndGet(bytes);
+		lastRun = System.currentTimeMillis();
+		logger.info(String.format("Removed %d deleted profiles older than %d days, %d bytes reclaimed", documents,
+				horizon, bytes));
+		return new PurgeResult(documents, bytes);
+	}
+
+	@Override
+	public void writeMetrics(MetricsWriter writer) {
+		writer.counter("compaction_purged_documents_total", "Deleted profiles removed", getPurgedDocuments());
+		writer.counter("compaction_purged_bytes_total", "Size of the deleted profiles removed", getPurgedBytes());
+	}
+
+	/**
+	 * @return deleted profiles removed since startup
+	 */
+	public long getPurgedDocuments() {
+		return purgedDocuments.get();
+	}
+
+	/**
+	 * @return BSON size of the deleted profiles removed since startup
+	 */
+	public long getPurgedBytes() {
+		return purgedBytes.get();
+	}
+
+	/**
+	 * @return end time of the last run, 0 if never run
+	 */
+	public long getLastRun() {
+		return lastRun;
+	}
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed buckets, in seconds
+ */
+public class Histogram {
+
+	private static final double[] DEFAULT_BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1,
+			0.25, 0.5, 1, 2.5, 5, 10 };
+
+	private final double[] buckets;
+
+	private final long[] bucketNanos;
+
+	/**
+	 * observations of each bucket, the last one is +Inf
+	 */
+	private final AtomicLongArray counts;
+
+	private final AtomicLong sumNanos = new AtomicLong();
+
+	public Histogram() {
+		this(DEFAULT_BUCKETS);
+	}
+
+	/**
+	 * @param buckets
+	 *            upper bounds of the buckets in seconds, ascending
+	 */
+	public Histogram(double... buckets) {
+		this.buckets = buckets.clone();
+		this.bucketNanos = new long[buckets.length];
+		for (int i = 0; i < buckets.length; i++) {
+			bucketNanos[i] = (long) (buckets[i] * 1e9);
+		}
+		this.counts = new AtomicLongArray(buckets.length + 1);
+	}
+
+	public void observeNanos(long nanos) {
+		int i = 0;
+		while (i < bucketNanos.length && nanos > bucketNanos[i]) {
+			i++;
+		}
+		counts.incrementAndGet(i);
+		sumNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Observes the time elapsed since the given {@link System#nanoTime()}
+	 * 
+	 * @param startNanos
+	 */
+	public void observeSince(long startNanos) {
+		observeNanos(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @return sum of the observations in seconds
+	 */
+	public double getSum() {
+		return sumNanos.get() / 1e9;
+	}
+
+	double[] getBuckets() {
+		return buckets;
+	}
+
+	/**
+	 * @return cumulative count of the observations up to each bucket, the
+	 *         last one is the total
+	 */
+	long[] getCumulativeCounts() {
+		long[] cumulative = new long[counts.length()];
+		long count = 0;
+		for (int i = 0; i < cumulative.length; i++) {
+			count += counts.get(i);
+			cumulative[i] = count;
+		}
+		return cumulative;
+	}
+}
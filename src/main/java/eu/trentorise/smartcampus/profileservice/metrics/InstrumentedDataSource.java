@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.metrics;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+
+/**
+ * Connection pool publishing its usage: active and idle connections, threads
+ * waiting for a connection and the distribution of the time spent waiting
+ */
+public class InstrumentedDataSource implements DataSource, MetricsSource {
+
+	private final BasicDataSource pool;
+
+	private final Histogram waitTime = new Histogram();
+
+	private final AtomicInteger waiters = new AtomicInteger();
+
+	public InstrumentedDataSource(BasicDataSource pool) {
+		this.pool = pool;
+	}
+
+	public void close() throws SQLException {
+		pool.close();
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		waiters.incrementAndGet();
+		try {
+			return pool.getConnection();
+		} finally {
+			waiters.decrementAndGet();
+			waitTime.observeSince(start);
+		}
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		long start = System.nanoTime();
+		waiters.incrementAndGet();
+		try {
+			return pool.getConnection(username, password);
+		} finally {
+			waiters.decrementAndGet();
+			waitTime.observeSince(start);
+		}
+	}
+
+	@Override
+	public void writeMetrics(MetricsWriter writer) {
+		writer.gauge("jdbc_pool_active", "Connections in use", pool.getNumActive());
+		writer.gauge("jdbc_pool_idle", "Idle connections", pool.getNumIdle());
+		writer.gauge("jdbc_pool_max_active", "Max connections", pool.getMaxActive());
+		writer.gauge("jdbc_pool_waiters", "Threads waiting for a connection", waiters.get());
+		writer.histogram("jdbc_pool_wait_seconds", "Time spent getting a connection", waitTime);
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return pool.getLogWriter();
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		pool.setLogWriter(out);
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+		pool.setLoginTimeout(seconds);
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return pool.getLoginTimeout();
+	}
+
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(pool)) {
+			return iface.cast(pool);
+		}
+		return pool.unwrap(iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(pool) || pool.isWrapperFor(iface);
+	}
+}
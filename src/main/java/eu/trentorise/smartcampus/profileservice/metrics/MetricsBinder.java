@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.metrics;
+
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Registers all the {@link MetricsSource} beans, including the ones of the
+ * parent context, in the {@link MetricsRegistry}
+ */
+@Component
+public class MetricsBinder {
+
+	@Autowired
+	private MetricsRegistry registry;
+
+	@Autowired(required = false)
+	private List<MetricsSource> sources;
+
+	@PostConstruct
+	public void bind() {
+		if (sources == null) {
+			return;
+		}
+		for (MetricsSource source : sources) {
+			registry.register(source);
+		}
+	}
+}
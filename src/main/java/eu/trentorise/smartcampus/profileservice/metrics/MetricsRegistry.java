@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sources of the metrics published by the metrics servlet. Defined in the
+ * root context, so that it is shared by the security and the dispatcher
+ * contexts.
+ */
+public class MetricsRegistry {
+
+	private static final Logger logger = Logger.getLogger(MetricsRegistry.class);
+
+	private final List<MetricsSource> sources = new CopyOnWriteArrayList<MetricsSource>();
+
+	public void register(MetricsSource source) {
+		if (!sources.contains(source)) {
+			sources.add(source);
+		}
+	}
+
+	public void unregister(MetricsSource source) {
+		sources.remove(source);
+	}
+
+	/**
+	 * Writes the metrics of all the sources, a failing source is skipped
+	 * 
+	 * @param writer
+	 */
+	public void write(MetricsWriter writer) {
+		for (MetricsSource source : sources) {
+			try {
+				source.writeMetrics(writer);
+			} catch (Exception e) {
+				logger.warn("Exception writing metrics of " + source.getClass().getSimpleName(), e);
+			}
+		}
+		writer.flush();
+	}
+}
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+import eu.trentorise.smartcampus.profileservice.security.MappedResourceFilter;
+
+/**
+ * Publishes the metrics of the {@link MetricsRegistry} of the root context
+ * in the Prometheus text format. The path is OAuth protected and mapped in
+ * <code>resourceList.xml</code> to the {@link #METRICS_SCOPE} scope: requests
+ * that did not go through the scope check of the {@link MappedResourceFilter}
+ * are rejected.
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String METRICS_SCOPE = "smartcampus.profileservice.metrics.read";
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		if (!METRICS_SCOPE.equals(req.getAttribute(MappedResourceFilter.SCOPE_ATTRIBUTE))) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		MetricsRegistry registry = WebApplicationContextUtils.getRequiredWebApplicationContext(getServletContext())
+				.getBean(MetricsRegistry.class);
+		resp.setContentType("text/plain; version=0.0.4");
+		resp.setCharacterEncoding("UTF-8");
+		registry.write(new MetricsWriter(resp.getWriter()));
+	}
+}
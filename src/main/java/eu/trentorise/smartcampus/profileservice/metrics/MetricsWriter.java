@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.metrics;
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes metrics in the Prometheus text exposition format
+ */
+public class MetricsWriter {
+
+	private final PrintWriter out;
+
+	private final Set<String> described = new HashSet<String>();
+
+	public MetricsWriter(PrintWriter out) {
+		this.out = out;
+	}
+
+	/**
+	 * @return a label to pass to the writer methods, with the value escaped
+	 */
+	public static String label(String name, String value) {
+		return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+	}
+
+	public void gauge(String name, String help, double value) {
+		gauge(name, help, null, value);
+	}
+
+	public void gauge(String name, String help, String labels, double value) {
+		describe(name, help, "gauge");
+		sample(name, labels, value);
+	}
+
+	public void counter(String name, String help, double value) {
+		counter(name, help, null, value);
+	}
+
+	public void counter(String name, String help, String labels, double value) {
+		describe(name, help, "counter");
+		sample(name, labels, value);
+	}
+
+	public void histogram(String name, String help, Histogram histogram) {
+		histogram(name, help, null, histogram);
+	}
+
+	public void histogram(String name, String help, String labels, Histogram histogram) {
+		describe(name, help, "histogram");
+		double[] buckets = histogram.getBuckets();
+		long[] counts = histogram.getCumulativeCounts();
+		String prefix = labels == null ? "" : labels + ",";
+		for (int i = 0; i < buckets.length; i++) {
+			sample(name + "_bucket", prefix + label("le", Double.toString(buckets[i])), counts[i]);
+		}
+		sample(name + "_bucket", prefix + label("le", "+Inf"), counts[counts.length - 1]);
+		sample(name + "_sum", labels, histogram.getSum());
+		sample(name + "_count", labels, counts[counts.length - 1]);
+	}
+
+	public void flush() {
+		out.flush();
+	}
+
+	private void describe(String name, String help, String type) {
+		if (described.add(name)) {
+			out.print("# HELP ");
+			out.print(name);
+			out.print(' ');
+			out.println(help);
+			out.print("# TYPE ");
+			out.print(name);
+			out.print(' ');
+			out.println(type);
+		}
+	}
+
+	private void sample(String name, String labels, double value) {
+		out.print(name);
+		if (labels != null) {
+			out.print('{');
+			out.print(labels);
+			out.print('}');
+		}
+		out.print(' ');
+		if (value == Math.rint(value) && !Double.isInfinite(value)) {
+			out.println((long) value);
+		} else {
+			out.println(value);
+		}
+	}
+}
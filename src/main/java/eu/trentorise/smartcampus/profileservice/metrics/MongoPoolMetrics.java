@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.metrics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.DBPortPool;
+import com.mongodb.DBTCPConnector;
+import com.mongodb.Mongo;
+import com.mongodb.MongoOptions;
+import com.mongodb.ServerAddress;
+
+/**
+ * Publishes the usage of the Mongo connection pool of each server
+ */
+@Component
+public class MongoPoolMetrics implements MetricsSource {
+
+	@Autowired
+	private Mongo mongo;
+
+	@Override
+	public void writeMetrics(MetricsWriter writer) {
+		MongoOptions options = mongo.getMongoOptions();
+		writer.gauge("mongo_pool_max", "Max connections per host", options.connectionsPerHost);
+		writer.gauge("mongo_pool_max_waiters", "Max threads waiting for a connection per host",
+				options.connectionsPerHost * options.threadsAllowedToBlockForConnectionMultiplier);
+		DBTCPConnector connector = mongo.getConnector();
+		for (ServerAddress address : connector.getServerAddressList()) {
+			DBPortPool pool = connector.getDBPortPool(address);
+			String server = MetricsWriter.label("server", address.toString());
+			writer.gauge("mongo_pool_in_use", "Connections in use", server, pool.inUse());
+			writer.gauge("mongo_pool_available", "Idle connections", server, pool.available());
+			writer.gauge("mongo_pool_total", "Open connections", server, pool.total());
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency, throughput and errors of every endpoint, with the time spent in
+ * each stage of the request. The stages of the request running on the
+ * current thread are accumulated by {@link #stage(Stage, long)}, called
+ * around the calls to the external services; outside of a request the calls
+ * are not recorded.
+ */
+public class RequestMetrics implements MetricsSource {
+
+	/**
+	 * endpoint of the requests not dispatched to a controller, e.g. rejected
+	 * by the security filters
+	 */
+	public static final String UNMAPPED = "unmapped";
+
+	public enum Stage {
+		/** security filters, up to the controller */
+		AUTH,
+		/** Mongo operations */
+		MONGO,
+		/** social engine calls */
+		SOCIAL,
+		/** response body serialization */
+		SERIALIZATION;
+	}
+
+	private static final ThreadLocal<RequestTimer> current = new ThreadLocal<RequestTimer>();
+
+	private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<String, EndpointMetrics>();
+
+	/**
+	 * Starts timing a request on the current thread
+	 */
+	public void begin() {
+		current.set(new RequestTimer(System.nanoTime()));
+	}
+
+	/**
+	 * Records the request started on the current thread
+	 * 
+	 * @param error
+	 *            true if the request failed
+	 */
+	public void end(boolean error) {
+		RequestTimer timer = current.get();
+		if (timer == null) {
+			return;
+		}
+		current.remove();
+		String endpoint = timer.endpoint == null ? UNMAPPED : timer.endpoint;
+		EndpointMetrics metrics = endpoints.get(endpoint);
+		if (metrics == null) {
+			EndpointMetrics created = new EndpointMetrics();
+			metrics = endpoints.putIfAbsent(endpoint, created);
+			if (metrics == null) metrics = created;
+		}
+		metrics.requests.incrementAndGet();
+		if (error) metrics.errors.incrementAndGet();
+		metrics.latency.observeSince(timer.start);
+		for (Stage stage : Stage.values()) {
+			if (timer.calls[stage.ordinal()] > 0) {
+				metrics.stages.get(stage).observeNanos(timer.nanos[stage.ordinal()]);
+			}
+		}
+	}
+
+	/**
+	 * Sets the endpoint of the request running on the current thread, the
+	 * time elapsed since the beginning is recorded as {@link Stage#AUTH}
+	 * 
+	 * @param endpoint
+	 */
+	public static void endpoint(String endpoint) {
+		RequestTimer timer = current.get();
+		if (timer != null && timer.endpoint == null) {
+			timer.endpoint = endpoint;
+			timer.add(Stage.AUTH, System.nanoTime() - timer.start);
+		}
+	}
+
+	/**
+	 * Adds the time elapsed since <code>startNanos</code> to a stage of the
+	 * request running on the current thread
+	 * 
+	 * @param stage
+	 * @param startNanos
+	 *            value of {@link System#nanoTime()} at the beginning of the
+	 *            call
+	 */
+	public static void stage(Stage stage, long startNanos) {
+		RequestTimer timer = current.get();
+		if (timer != null) {
+			timer.add(stage, System.nanoTime() - startNanos);
+		}
+	}
+
+	/**
+	 * @return a proxy of the target recording the time of every call of the
+	 *         given interface as a stage of the current request
+	 */
+	public static <T> T timed(final T target, Class<T> iface, final Stage stage) {
+		return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] { iface },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						long start = System.nanoTime();
+						try {
+							return method.invoke(target, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						} finally {
+							stage(stage, start);
+						}
+					}
+				}));
+	}
+
+	@Override
+	public void writeMetrics(MetricsWriter writer) {
+		for (Map.Entry<String, EndpointMetrics> e : endpoints.entrySet()) {
+			writer.counter("http_requests_total", "Requests by endpoint",
+					MetricsWriter.label("endpoint", e.getKey()), e.getValue().requests.get());
+		}
+		for (Map.Entry<String, EndpointMetrics> e : endpoints.entrySet()) {
+			writer.counter("http_request_errors_total", "Failed requests by endpoint",
+					MetricsWriter.label("endpoint", e.getKey()), e.getValue().errors.get());
+		}
+		for (Map.Entry<String, EndpointMetrics> e : endpoints.entrySet()) {
+			writer.histogram("http_request_duration_seconds", "Request latency by endpoint",
+					MetricsWriter.label("endpoint", e.getKey()), e.getValue().latency);
+		}
+		for (Map.Entry<String, EndpointMetrics> e : endpoints.entrySet()) {
+			for (Stage stage : Stage.values()) {
+				Histogram histogram = e.getValue().stages.get(stage);
+				if (histogram.getCount() > 0) {
+					writer.histogram("http_request_stage_seconds", "Time spent in each stage of the requests",
+							MetricsWriter.label("endpoint", e.getKey()) + ","
+									+ MetricsWriter.label("stage", stage.name().toLowerCase()), histogram);
+				}
+			}
+		}
+	}
+
+	private static class RequestTimer {
+
+		private final long start;
+
+		private String endpoint;
+
+		private final long[] nanos = new long[Stage.values().length];
+
+		private final int[] calls = new int[Stage.values().length];
+
+		RequestTimer(long start) {
+			this.start = start;
+		}
+
+		void add(Stage stage, long elapsed) {
+			nanos[stage.ordinal()] += elapsed;
+			calls[stage.ordinal()]++;
+		}
+	}
+
+	private static class EndpointMetrics {
+
+		private final AtomicLong requests = new AtomicLong();
+
+		private final AtomicLong errors = new AtomicLong();
+
+		private final Histogram latency = new Histogram();
+
+		private final Map<Stage, Histogram> stages = new EnumMap<Stage, Histogram>(Stage.class);
+
+		EndpointMetrics() {
+			for (Stage stage : Stage.values()) {
+				stages.put(stage, new Histogram());
+			}
+		}
+	}
+}
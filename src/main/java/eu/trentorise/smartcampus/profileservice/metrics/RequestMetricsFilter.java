@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Times the whole processing of each request, security filters included, and
+ * records it in the {@link RequestMetrics}. Requests answered with a 5xx
+ * status or failing with an exception are counted as errors.
+ */
+public class RequestMetricsFilter implements Filter {
+
+	private final RequestMetrics metrics;
+
+	public RequestMetricsFilter(RequestMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+			ServletException {
+		StatusResponse status = new StatusResponse((HttpServletResponse) response);
+		boolean error = true;
+		metrics.begin();
+		try {
+			chain.doFilter(request, status);
+			error = status.status >= 500;
+		} finally {
+			metrics.end(error);
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	/**
+	 * Servlet 2.5 responses do not expose their status
+	 */
+	private static class StatusResponse extends HttpServletResponseWrapper {
+
+		private int status = SC_OK;
+
+		StatusResponse(HttpServletResponse response) {
+			super(response);
+		}
+
+		@Override
+		public void setStatus(int sc) {
+			status = sc;
+			super.setStatus(sc);
+		}
+
+		@SuppressWarnings("deprecation")
+		@Override
+		public void setStatus(int sc, String sm) {
+			status = sc;
+			super.setStatus(sc, sm);
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			status = sc;
+			super.sendError(sc);
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			status = sc;
+			super.sendError(sc, msg);
+		}
+	}
+}
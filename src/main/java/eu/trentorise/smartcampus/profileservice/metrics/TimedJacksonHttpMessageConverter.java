@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.metrics;
+
+import java.io.IOException;
+
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.http.converter.json.MappingJacksonHttpMessageConverter;
+
+import eu.trentorise.smartcampus.profileservice.metrics.RequestMetrics.Stage;
+
+/**
+ * JSON converter recording the time spent writing the response bodies as
+ * {@link Stage#SERIALIZATION}
+ */
+public class TimedJacksonHttpMessageConverter extends MappingJacksonHttpMessageConverter {
+
+	@Override
+	protected void writeInternal(Object object, HttpOutputMessage outputMessage) throws IOException,
+			HttpMessageNotWritableException {
+		long start = System.nanoTime();
+		try {
+			super.writeInternal(object, outputMessage);
+		} finally {
+			RequestMetrics.stage(Stage.SERIALIZATION, start);
+		}
+	}
+}
@@ -7,6 +7,8 @@ import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
 @XmlRootElement(name = "ExtendedProfiles")
 @XmlAccessorType(XmlAccessType.FIELD)
 public class ExtendedProfiles {
@@ -14,6 +16,22 @@ public class ExtendedProfiles {
 	@XmlElement(name = "ExtendedProfile")
 	private List<ExtendedProfile> profiles;
 
+	/**
+	 * continuation token of the next page, set only on paginated results
+	 */
+	private String next;
+
+	/**
+	 * ids of the deleted profiles, set only on incremental results
+	 */
+	private List<String> deleted;
+
+	/**
+	 * high-water mark to pass as <code>since</code> to the next incremental
+	 * request, set only on incremental results
+	 */
+	private Long version;
+
 	public List<ExtendedProfile> getProfiles() {
 		return profiles;
 	}
@@ -21,6 +39,33 @@ public class ExtendedProfiles {
 	public void setProfiles(List<ExtendedProfile> profiles) {
 		this.profiles = profiles;
 	}
+
+	@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+	public String getNext() {
+		return next;
+	}
+
+	public void setNext(String next) {
+		this.next = next;
+	}
+
+	@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+	public List<String> getDeleted() {
+		return deleted;
+	}
+
+	public void setDeleted(List<String> deleted) {
+		this.deleted = deleted;
+	}
+
+	@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
 	
 	
 	
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.model;
+
+import java.util.Map;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Single create, update or delete of an extended profile in a batch request
+ */
+@XmlRootElement(name = "ProfileOperation")
+public class ProfileOperation {
+
+	public enum Type {
+		CREATE, UPDATE, DELETE
+	}
+
+	private Type type;
+
+	private String userId;
+
+	/**
+	 * profile label
+	 */
+	private String profileId;
+
+	/**
+	 * profile content, not used by {@link Type#DELETE}
+	 */
+	private Map<String, Object> content;
+
+	public Type getType() {
+		return type;
+	}
+
+	public void setType(Type type) {
+		this.type = type;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public void setUserId(String userId) {
+		this.userId = userId;
+	}
+
+	public String getProfileId() {
+		return profileId;
+	}
+
+	public void setProfileId(String profileId) {
+		this.profileId = profileId;
+	}
+
+	public Map<String, Object> getContent() {
+		return content;
+	}
+
+	public void setContent(Map<String, Object> content) {
+		this.content = content;
+	}
+
+}
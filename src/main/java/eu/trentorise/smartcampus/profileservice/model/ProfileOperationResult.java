@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.model;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Outcome of a {@link ProfileOperation}
+ */
+@XmlRootElement(name = "ProfileOperationResult")
+public class ProfileOperationResult {
+
+	private ProfileOperation.Type type;
+
+	private String userId;
+
+	private String profileId;
+
+	/**
+	 * HTTP status the single operation would have returned
+	 */
+	private int status;
+
+	private String message;
+
+	public ProfileOperationResult() {
+	}
+
+	public ProfileOperationResult(ProfileOperation op, int status, String message) {
+		this.type = op.getType();
+		this.userId = op.getUserId();
+		this.profileId = op.getProfileId();
+		this.status = status;
+		this.message = message;
+	}
+
+	public ProfileOperation.Type getType() {
+		return type;
+	}
+
+	public void setType(ProfileOperation.Type type) {
+		this.type = type;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public void setUserId(String userId) {
+		this.userId = userId;
+	}
+
+	public String getProfileId() {
+		return profileId;
+	}
+
+	public void setProfileId(String profileId) {
+		this.profileId = profileId;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+	public boolean isSuccess() {
+		return status >= 200 && status < 300;
+	}
+
+}
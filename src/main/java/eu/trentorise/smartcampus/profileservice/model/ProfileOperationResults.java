@@ -0,0 +1,25 @@
+package eu.trentorise.smartcampus.profileservice.model;
+
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement(name = "ProfileOperationResults")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ProfileOperationResults {
+
+	@XmlElement(name = "ProfileOperationResult")
+	private List<ProfileOperationResult> results;
+
+	public List<ProfileOperationResult> getResults() {
+		return results;
+	}
+
+	public void setResults(List<ProfileOperationResult> results) {
+		this.results = results;
+	}
+
+}
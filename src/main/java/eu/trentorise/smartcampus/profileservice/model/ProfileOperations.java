@@ -0,0 +1,25 @@
+package eu.trentorise.smartcampus.profileservice.model;
+
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement(name = "ProfileOperations")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ProfileOperations {
+
+	@XmlElement(name = "ProfileOperation")
+	private List<ProfileOperation> operations;
+
+	public List<ProfileOperation> getOperations() {
+		return operations;
+	}
+
+	public void setOperations(List<ProfileOperation> operations) {
+		this.operations = operations;
+	}
+
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.security;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.springframework.beans.factory.InitializingBean;
+
+import eu.trentorise.smartcampus.profileservice.cache.ExpiringCache;
+import eu.trentorise.smartcampus.profileservice.metrics.MetricsSource;
+import eu.trentorise.smartcampus.profileservice.metrics.MetricsWriter;
+import eu.trentorise.smartcampus.resourceprovider.model.AuthServices;
+
+/**
+ * {@link AuthServices} decorator caching the lookups of the resource filter
+ * and of the controllers, e.g. resources by URI and users by id. The results
+ * of the read methods (load*, find*, get*, read*, is*) are cached by method
+ * and arguments for <code>ttl</code> seconds, null results in a separate,
+ * smaller cache for <code>negativeTtl</code> seconds, so that lookups of
+ * unknown keys cannot evict the valid entries. Any other method is passed to
+ * the delegate and drops the whole cache. The decorated services are
+ * returned by {@link #proxy()}.
+ */
+public class CachingAuthServices implements InvocationHandler, InitializingBean, MetricsSource {
+
+	private static final String[] READ_PREFIXES = { "load", "find", "get", "read", "is" };
+
+	private final AuthServices delegate;
+
+	private int size = 10000;
+
+	private long ttl = 60;
+
+	private int negativeSize = 1000;
+
+	private long negativeTtl = 10;
+
+	private ExpiringCache<List<Object>, Object> results;
+
+	private ExpiringCache<List<Object>, Boolean> missing;
+
+	public CachingAuthServices(AuthServices delegate) {
+		this.delegate = delegate;
+	}
+
+	public void setSize(int size) {
+		this.size = size;
+	}
+
+	/**
+	 * @param ttl
+	 *            seconds a result is cached
+	 */
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public void setNegativeSize(int negativeSize) {
+		this.negativeSize = negativeSize;
+	}
+
+	/**
+	 * @param negativeTtl
+	 *            seconds a null result is cached
+	 */
+	public void setNegativeTtl(long negativeTtl) {
+		this.negativeTtl = negativeTtl;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		results = new ExpiringCache<List<Object>, Object>(size, ttl * 1000);
+		missing = new ExpiringCache<List<Object>, Boolean>(negativeSize, negativeTtl * 1000);
+	}
+
+	/**
+	 * @return the cached auth services
+	 */
+	public AuthServices proxy() {
+		return (AuthServices) Proxy.newProxyInstance(AuthServices.class.getClassLoader(),
+				new Class<?>[] { AuthServices.class }, this);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			return method.invoke(this, args);
+		}
+		if (!isRead(method)) {
+			try {
+				return call(method, args);
+			} finally {
+				invalidateAll();
+			}
+		}
+		List<Object> key = new ArrayList<Object>();
+		key.add(method.getName());
+		if (args != null) key.addAll(Arrays.asList(args));
+		Object result = results.get(key);
+		if (result != null || missing.get(key) != null) {
+			return result;
+		}
+		result = call(method, args);
+		if (result == null) {
+			missing.put(key, Boolean.TRUE);
+		} else {
+			results.put(key, result);
+		}
+		return result;
+	}
+
+	public void invalidateAll() {
+		results.invalidateAll();
+		missing.invalidateAll();
+	}
+
+	@Override
+	public void writeMetrics(MetricsWriter writer) {
+		writer.gauge("auth_services_cache_size", "Cached auth services results", results.size());
+		writer.counter("auth_services_cache_hits_total", "Auth services cache hits", results.getHits());
+		writer.counter("auth_services_cache_misses_total", "Auth services cache misses", results.getMisses());
+		writer.gauge("auth_services_negative_cache_size", "Cached auth services null results", missing.size());
+	}
+
+	private Object call(Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(delegate, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static boolean isRead(Method method) {
+		if (method.getReturnType() == Void.TYPE) {
+			return false;
+		}
+		for (String prefix : READ_PREFIXES) {
+			if (method.getName().startsWith(prefix)) return true;
+		}
+		return false;
+	}
+}
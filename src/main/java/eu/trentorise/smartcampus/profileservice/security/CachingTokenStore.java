@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.security;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+
+import eu.trentorise.smartcampus.profileservice.cache.ExpiringCache;
+import eu.trentorise.smartcampus.profileservice.metrics.MetricsSource;
+import eu.trentorise.smartcampus.profileservice.metrics.MetricsWriter;
+
+/**
+ * {@link TokenStore} decorator caching the access tokens read by the resource
+ * filter. A token and its authentication are read together and kept until
+ * the token expires or for <code>ttl</code> seconds, whichever comes first:
+ * a token revoked by the authorization server, outside of this store, stays
+ * valid here for up to <code>ttl</code> seconds (5 minutes by default).
+ * Unknown tokens are kept for <code>negativeTtl</code> seconds in a separate,
+ * smaller cache, so that lookups of random tokens cannot evict the valid
+ * ones. Concurrent lookups of the same token are served by a single read of
+ * the delegate store. Writes are passed to the delegate and invalidate the
+ * cached token.
+ */
+public class CachingTokenStore implements TokenStore, InitializingBean, MetricsSource {
+
+	private final TokenStore delegate;
+
+	private int size = 10000;
+
+	private long ttl = 300;
+
+	private long negativeTtl = 30;
+
+	private int negativeSize = 1000;
+
+	private ExpiringCache<String, CachedToken> tokens;
+
+	/**
+	 * tokens not found in the delegate store
+	 */
+	private ExpiringCache<String, CachedToken> unknown;
+
+	private ConcurrentMap<String, Future<CachedToken>> loading = new ConcurrentHashMap<String, Future<CachedToken>>();
+
+	public CachingTokenStore(TokenStore delegate) {
+		this.delegate = delegate;
+	}
+
+	public void setSize(int size) {
+		this.size = size;
+	}
+
+	/**
+	 * @param ttl
+	 *            max seconds a valid token is cached, and so max seconds a
+	 *            revoked token is still accepted
+	 */
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * @param negativeTtl
+	 *            seconds an unknown token is cached
+	 */
+	public void setNegativeTtl(long negativeTtl) {
+		this.negativeTtl = negativeTtl;
+	}
+
+	/**
+	 * @param negativeSize
+	 *            max unknown tokens cached
+	 */
+	public void setNegativeSize(int negativeSize) {
+		this.negativeSize = negativeSize;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		tokens = new ExpiringCache<String, CachedToken>(size, ttl * 1000);
+		unknown = new ExpiringCache<String, CachedToken>(negativeSize, negativeTtl * 1000);
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String tokenValue) {
+		return lookup(tokenValue).token;
+	}
+
+	@Override
+	public OAuth2Authentication readAuthentication(String token) {
+		return lookup(token).authentication;
+	}
+
+	@Override
+	public OAuth2Authentication readAuthentication(OAuth2AccessToken token) {
+		return readAuthentication(token.getValue());
+	}
+
+	@Override
+	public void storeAccessToken(OAuth2AccessToken token, OAuth2Authentication authentication) {
+		delegate.storeAccessToken(token, authentication);
+		invalidate(token.getValue());
+	}
+
+	@Override
+	public void removeAccessToken(OAuth2AccessToken token) {
+		delegate.removeAccessToken(token);
+		invalidate(token.getValue());
+	}
+
+	@Override
+	public void removeAccessTokenUsingRefreshToken(OAuth2RefreshToken refreshToken) {
+		delegate.removeAccessTokenUsingRefreshToken(refreshToken);
+		// the access token value is not known here
+		tokens.invalidateAll();
+		unknown.invalidateAll();
+	}
+
+	@Override
+	public void storeRefreshToken(OAuth2RefreshToken refreshToken, OAuth2Authentication authentication) {
+		delegate.storeRefreshToken(refreshToken, authentication);
+	}
+
+	@Override
+	public OAuth2RefreshToken readRefreshToken(String tokenValue) {
+		return delegate.readRefreshToken(tokenValue);
+	}
+
+	@Override
+	public OAuth2Authentication readAuthenticationForRefreshToken(OAuth2RefreshToken token) {
+		return delegate.readAuthenticationForRefreshToken(token);
+	}
+
+	@Override
+	public void removeRefreshToken(OAuth2RefreshToken token) {
+		delegate.removeRefreshToken(token);
+	}
+
+	@Override
+	public OAuth2AccessToken getAccessToken(OAuth2Authentication authentication) {
+		return delegate.getAccessToken(authentication);
+	}
+
+	@Override
+	public Collection<OAuth2AccessToken> findTokensByUserName(String userName) {
+		return delegate.findTokensByUserName(userName);
+	}
+
+	@Override
+	public Collection<OAuth2AccessToken> findTokensByClientId(String clientId) {
+		return delegate.findTokensByClientId(clientId);
+	}
+
+	/**
+	 * Drops a cached token, e.g. when it is revoked
+	 * 
+	 * @param tokenValue
+	 */
+	public void invalidate(String tokenValue) {
+		tokens.invalidate(tokenValue);
+		unknown.invalidate(tokenValue);
+	}
+
+	public long getHits() {
+		return tokens.getHits();
+	}
+
+	public long getMisses() {
+		return tokens.getMisses();
+	}
+
+	@Override
+	public void writeMetrics(MetricsWriter writer) {
+		writer.gauge("token_cache_size", "Cached access tokens", tokens.size());
+		writer.counter("token_cache_hits_total", "Access token cache hits", getHits());
+		writer.counter("token_cache_misses_total", "Access token cache misses", getMisses());
+		writer.gauge("token_negative_cache_size", "Cached unknown access tokens", unknown.size());
+	}
+
+	private CachedToken lookup(final String tokenValue) {
+		CachedToken cached = tokens.get(tokenValue);
+		if (cached == null) {
+			cached = unknown.get(tokenValue);
+		}
+		if (cached != null && cached.validUntil > System.currentTimeMillis()) {
+			return cached;
+		}
+		Future<CachedToken> load = loading.get(tokenValue);
+		if (load == null) {
+			FutureTask<CachedToken> task = new FutureTask<CachedToken>(new Callable<CachedToken>() {
+				@Override
+				public CachedToken call() throws Exception {
+					return read(tokenValue);
+				}
+			});
+			load = loading.putIfAbsent(tokenValue, task);
+			if (load == null) {
+				load = task;
+				try {
+					task.run();
+				} finally {
+					loading.remove(tokenValue, task);
+				}
+			}
+		}
+		try {
+			return load.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Exception reading access token", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted reading access token");
+		}
+	}
+
+	private CachedToken read(String tokenValue) {
+		long now = System.currentTimeMillis();
+		OAuth2AccessToken token = delegate.readAccessToken(tokenValue);
+		CachedToken cached;
+		if (token == null) {
+			cached = new CachedToken(null, null, now + negativeTtl * 1000);
+			unknown.put(tokenValue, cached);
+			return cached;
+		} else {
+			long validUntil = now + ttl * 1000;
+			if (token.getExpiration() != null) {
+				validUntil = Math.min(validUntil, token.getExpiration().getTime());
+			}
+			cached = new CachedToken(token, delegate.readAuthentication(token), validUntil);
+		}
+		tokens.put(tokenValue, cached);
+		return cached;
+	}
+
+	private static class CachedToken {
+
+		private final OAuth2AccessToken token;
+
+		private final OAuth2Authentication authentication;
+
+		private final long validUntil;
+
+		CachedToken(OAuth2AccessToken token, OAuth2Authentication authentication, long validUntil) {
+			this.token = token;
+			this.authentication = authentication;
+			this.validUntil = validUntil;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.security;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import eu.trentorise.smartcampus.resourceprovider.filter.ResourceFilter;
+
+/**
+ * Resource filter resolving the scope required by a request with the
+ * precompiled {@link ResourceMappingMatcher}. The token authenticated by the
+ * library filter must grant the resolved scope, otherwise the request is
+ * rejected with 403. The resolved scope is exposed to the next filters and
+ * to the controllers as the {@link #SCOPE_ATTRIBUTE} request attribute.
+ * Paths not mapped in <code>resourceList.xml</code> are left to the library
+ * filter.
+ */
+public class MappedResourceFilter extends ResourceFilter {
+
+	public static final String SCOPE_ATTRIBUTE = MappedResourceFilter.class.getName() + ".scope";
+
+	private ResourceMappingMatcher matcher;
+
+	public void setMatcher(ResourceMappingMatcher matcher) {
+		this.matcher = matcher;
+	}
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res, final FilterChain chain) throws IOException,
+			ServletException {
+		HttpServletRequest request = (HttpServletRequest) req;
+		final String scope = matcher.resolveScope(request.getMethod(),
+				request.getRequestURI().substring(request.getContextPath().length()));
+		if (scope == null) {
+			super.doFilter(req, res, chain);
+			return;
+		}
+		request.setAttribute(SCOPE_ATTRIBUTE, scope);
+		super.doFilter(req, res, new FilterChain() {
+			@Override
+			public void doFilter(ServletRequest req, ServletResponse res) throws IOException, ServletException {
+				if (!isGranted(scope)) {
+					((HttpServletResponse) res).sendError(HttpServletResponse.SC_FORBIDDEN, "Scope " + scope
+							+ " not granted");
+					return;
+				}
+				chain.doFilter(req, res);
+			}
+		});
+	}
+
+	/**
+	 * @return false if the request is authenticated by a token not granting
+	 *         the scope; unauthenticated requests are rejected by the
+	 *         security interceptor
+	 */
+	private static boolean isGranted(String scope) {
+		Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+		if (!(auth instanceof OAuth2Authentication)) {
+			return true;
+		}
+		return ((OAuth2Authentication) auth).getAuthorizationRequest().getScope().contains(scope);
+	}
+}
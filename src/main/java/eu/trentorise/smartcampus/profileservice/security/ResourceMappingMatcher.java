@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.springframework.core.io.Resource;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Precompiled matcher of the resource mappings of <code>resourceList.xml</code>.
+ * The path patterns are loaded once in a trie keyed on path segments, each
+ * node holding the mapping of every HTTP method. A request path is matched
+ * comparing its segments in place, without regular expressions and without
+ * allocations; literal segments take precedence over variables.
+ */
+public class ResourceMappingMatcher {
+
+	private static final String[] METHODS = { "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH" };
+
+	private final Node root = new Node();
+
+	private final List<Mapping> mappings = new ArrayList<Mapping>();
+
+	public ResourceMappingMatcher(Resource resourceList) throws IOException {
+		InputStream in = resourceList.getInputStream();
+		try {
+			load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	public ResourceMappingMatcher(InputStream resourceList) throws IOException {
+		load(resourceList);
+	}
+
+	/**
+	 * @return the loaded mappings, in definition order
+	 */
+	public List<Mapping> getMappings() {
+		return Collections.unmodifiableList(mappings);
+	}
+
+	/**
+	 * @param method
+	 *            HTTP method of the request
+	 * @param path
+	 *            request path within the application
+	 * @return the mapping of the path, null if the path is not mapped
+	 */
+	public Mapping match(String method, String path) {
+		return match(root, path, skipSlashes(path, 0), methodIndex(method));
+	}
+
+	/**
+	 * @param method
+	 *            HTTP method of the request
+	 * @param path
+	 *            request path within the application
+	 * @return the scope required by the path, with the path variables
+	 *         replaced, null if the path is not mapped
+	 */
+	public String resolveScope(String method, String path) {
+		Mapping mapping = match(method, path);
+		return mapping == null ? null : mapping.resolveUri(path);
+	}
+
+	private Mapping match(Node node, String path, int start, int method) {
+		if (start >= path.length()) {
+			Mapping mapping = method < 0 ? null : node.byMethod[method];
+			return mapping != null ? mapping : node.any;
+		}
+		int end = segmentEnd(path, start);
+		int length = end - start;
+		int next = skipSlashes(path, end);
+		for (int i = 0; i < node.literals.length; i++) {
+			String literal = node.literals[i];
+			if (literal.length() == length && path.regionMatches(start, literal, 0, length)) {
+				Mapping mapping = match(node.literalChildren[i], path, next, method);
+				if (mapping != null) return mapping;
+			}
+		}
+		return node.variable == null ? null : match(node.variable, path, next, method);
+	}
+
+	private void load(InputStream in) throws IOException {
+		NodeList elements;
+		try {
+			elements = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in)
+					.getElementsByTagName("resourceMapping");
+		} catch (Exception e) {
+			throw new IOException("Invalid resource list: " + e.getMessage());
+		}
+		for (int i = 0; i < elements.getLength(); i++) {
+			Element element = (Element) elements.item(i);
+			add(new Mapping(element.getAttribute("pathPattern"), element.getAttribute("method"),
+					element.getAttribute("uri")));
+		}
+	}
+
+	private void add(Mapping mapping) {
+		Node node = root;
+		for (String segment : mapping.segments) {
+			if (segment.startsWith("{")) {
+				if (node.variable == null) node.variable = new Node();
+				node = node.variable;
+			} else {
+				node = node.literal(segment);
+			}
+		}
+		if (mapping.methods.isEmpty()) {
+			node.any = checkFree(node.any, mapping);
+		} else {
+			for (String method : mapping.methods) {
+				int index = methodIndex(method);
+				if (index < 0) {
+					throw new IllegalStateException("Unknown method " + method + " in mapping " + mapping);
+				}
+				node.byMethod[index] = checkFree(node.byMethod[index], mapping);
+			}
+		}
+		mappings.add(mapping);
+	}
+
+	private static Mapping checkFree(Mapping existing, Mapping mapping) {
+		if (existing != null) {
+			throw new IllegalStateException("Mapping " + mapping + " conflicts with " + existing);
+		}
+		return mapping;
+	}
+
+	private static int methodIndex(String method) {
+		for (int i = 0; i < METHODS.length; i++) {
+			if (METHODS[i].equalsIgnoreCase(method)) return i;
+		}
+		return -1;
+	}
+
+	private static int segmentEnd(String path, int start) {
+		int end = path.indexOf('/', start);
+		return end < 0 ? path.length() : end;
+	}
+
+	private static int skipSlashes(String path, int start) {
+		while (start < path.length() && path.charAt(start) == '/') {
+			start++;
+		}
+		return start;
+	}
+
+	private static class Node {
+
+		private String[] literals = new String[0];
+
+		private Node[] literalChildren = new Node[0];
+
+		private Node variable;
+
+		private final Mapping[] byMethod = new Mapping[METHODS.length];
+
+		/**
+		 * mapping valid for every method
+		 */
+		private Mapping any;
+
+		Node literal(String segment) {
+			for (int i = 0; i < literals.length; i++) {
+				if (literals[i].equals(segment)) return literalChildren[i];
+			}
+			literals = Arrays.copyOf(literals, literals.length + 1);
+			literalChildren = Arrays.copyOf(literalChildren, literalChildren.length + 1);
+			literals[literals.length - 1] = segment;
+			literalChildren[literalChildren.length - 1] = new Node();
+			return literalChildren[literalChildren.length - 1];
+		}
+	}
+
+	/**
+	 * A mapping of a path pattern to the scope URI it requires
+	 */
+	public static class Mapping {
+
+		private final String pathPattern;
+
+		private final Set<String> methods = new LinkedHashSet<String>();
+
+		private final String uri;
+
+		private final String[] segments;
+
+		/**
+		 * URI split at the variables: literal parts at even positions, and
+		 * after each one the index of the path segment replacing the variable
+		 */
+		private final String[] uriParts;
+
+		private final int[] uriSegments;
+
+		Mapping(String pathPattern, String methods, String uri) {
+			this.pathPattern = pathPattern;
+			this.uri = uri;
+			for (String method : methods.split(",")) {
+				if (method.trim().length() > 0) this.methods.add(method.trim().toUpperCase());
+			}
+			List<String> segments = new ArrayList<String>();
+			for (String segment : pathPattern.split("/")) {
+				if (segment.length() > 0) segments.add(segment);
+			}
+			this.segments = segments.toArray(new String[segments.size()]);
+
+			List<String> parts = new ArrayList<String>();
+			List<Integer> partSegments = new ArrayList<Integer>();
+			int start = 0;
+			int open;
+			while ((open = uri.indexOf('{', start)) >= 0) {
+				int close = uri.indexOf('}', open);
+				if (close < 0) break;
+				int segment = segments.indexOf(uri.substring(open, close + 1));
+				if (segment < 0) {
+					throw new IllegalStateException("Variable " + uri.substring(open, close + 1) + " of " + uri
+							+ " not in path " + pathPattern);
+				}
+				parts.add(uri.substring(start, open));
+				partSegments.add(segment);
+				start = close + 1;
+			}
+			parts.add(uri.substring(start));
+			this.uriParts = parts.toArray(new String[parts.size()]);
+			this.uriSegments = new int[partSegments.size()];
+			for (int i = 0; i < uriSegments.length; i++) {
+				uriSegments[i] = partSegments.get(i);
+			}
+		}
+
+		public String getPathPattern() {
+			return pathPattern;
+		}
+
+		/**
+		 * @return methods of the mapping, empty for all the methods
+		 */
+		public Set<String> getMethods() {
+			return Collections.unmodifiableSet(methods);
+		}
+
+		/**
+		 * @return scope URI, possibly containing path variables
+		 */
+		public String getUri() {
+			return uri;
+		}
+
+		/**
+		 * @param path
+		 *            a path matched by this mapping
+		 * @return the scope URI with the variables replaced by the path
+		 *         segments
+		 */
+		public String resolveUri(String path) {
+			if (uriSegments.length == 0) {
+				return uri;
+			}
+			StringBuilder sb = new StringBuilder(uri.length() + 16);
+			for (int i = 0; i < uriSegments.length; i++) {
+				sb.append(uriParts[i]);
+				appendSegment(sb, path, uriSegments[i]);
+			}
+			sb.append(uriParts[uriParts.length - 1]);
+			return sb.toString();
+		}
+
+		private static void appendSegment(StringBuilder sb, String path, int index) {
+			int start = skipSlashes(path, 0);
+			for (int i = 0; i < index; i++) {
+				start = skipSlashes(path, segmentEnd(path, start));
+			}
+			sb.append(path, start, segmentEnd(path, start));
+		}
+
+		@Override
+		public String toString() {
+			return methods + " " + pathPattern + " -> " + uri;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.storage;
+
+/**
+ * Thrown when a conditional write of a profile keeps finding a version
+ * changed by other writers, after the configured number of attempts
+ */
+public class ConcurrentUpdateException extends RuntimeException {
+
+	private static final long serialVersionUID = 3621964788312487101L;
+
+	public ConcurrentUpdateException(String msg) {
+		super(msg);
+	}
+
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.storage;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+
+/**
+ * Iterator over a query result read in pages sorted by id, each page starting
+ * after the id of the last profile of the previous one
+ */
+abstract class PageIterator implements Iterator<ExtendedProfile> {
+
+	private final int pageSize;
+
+	private Iterator<ExtendedProfile> page;
+
+	private String last;
+
+	private boolean lastPage;
+
+	PageIterator(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @param after
+	 *            id of the last profile read, null for the first page
+	 * @param limit
+	 * @return the profiles following <code>after</code>
+	 */
+	protected abstract List<ExtendedProfile> nextPage(String after, int limit);
+
+	@Override
+	public boolean hasNext() {
+		if ((page == null || !page.hasNext()) && !lastPage) {
+			List<ExtendedProfile> profiles = nextPage(last, pageSize);
+			lastPage = profiles.size() < pageSize;
+			page = profiles.iterator();
+		}
+		return page.hasNext();
+	}
+
+	@Override
+	public ExtendedProfile next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		ExtendedProfile profile = page.next();
+		last = profile.getId();
+		return profile;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
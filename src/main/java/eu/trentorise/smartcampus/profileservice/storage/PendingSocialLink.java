@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.storage;
+
+/**
+ * Extended profile stored without its social entity, waiting for the entity
+ * to be created in background
+ */
+public class PendingSocialLink {
+
+	/**
+	 * id of the extended profile object
+	 */
+	private String id;
+
+	private String userId;
+
+	private String profileId;
+
+	/**
+	 * social id of the profile owner
+	 */
+	private String ownerSocialId;
+
+	/**
+	 * id of the social entity once created, reused by the next attempts
+	 */
+	private String socialId;
+
+	private int attempts;
+
+	/**
+	 * time of the next attempt, also used as a lease by the worker processing
+	 * the link
+	 */
+	private long nextAttempt;
+
+	private String lastError;
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public void setUserId(String userId) {
+		this.userId = userId;
+	}
+
+	public String getProfileId() {
+		return profileId;
+	}
+
+	public void setProfileId(String profileId) {
+		this.profileId = profileId;
+	}
+
+	public String getOwnerSocialId() {
+		return ownerSocialId;
+	}
+
+	public void setOwnerSocialId(String ownerSocialId) {
+		this.ownerSocialId = ownerSocialId;
+	}
+
+	public String getSocialId() {
+		return socialId;
+	}
+
+	public void setSocialId(String socialId) {
+		this.socialId = socialId;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	public long getNextAttempt() {
+		return nextAttempt;
+	}
+
+	public void setNextAttempt(long nextAttempt) {
+		this.nextAttempt = nextAttempt;
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	public void setLastError(String lastError) {
+		this.lastError = lastError;
+	}
+
+}
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.data.mongodb.core.IndexOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.query.Order;
+
+/**
+ * Creates and verifies at startup the indexes needed by the
+ * {@link ProfileStorage} queries. The indexes are built in background, so
+ * that an existing collection stays available meanwhile. Every query shape
+ * without a matching index is logged; if <code>failOnMissingIndexes</code> is
+ * set the context startup is aborted, unless the index of the query is still
+ * being built. Indexes still building are checked again every
+ * {@link #RECHECK_INTERVAL} milliseconds, and used by the attribute searches
+ * once built.
+ */
+public class ProfileIndexBootstrap implements InitializingBean {
+
+	private static final Logger logger = Logger.getLogger(ProfileIndexBootstrap.class);
+
+	static final long RECHECK_INTERVAL = 30000;
+
+	private ProfileStorage storage;
+
+	private boolean createIndexes = true;
+
+	private boolean failOnMissingIndexes = false;
+
+	public ProfileIndexBootstrap(ProfileStorage storage) {
+		this.storage = storage;
+	}
+
+	public void setCreateIndexes(boolean createIndexes) {
+		this.createIndexes = createIndexes;
+	}
+
+	public void setFailOnMissingIndexes(boolean failOnMissingIndexes) {
+		this.failOnMissingIndexes = failOnMissingIndexes;
+	}
+
+	/**
+	 * @return indexes to create on the profile collection
+	 */
+	protected List<Index> getIndexes() {
+		List<Index> indexes = new ArrayList<Index>();
+		indexes.add(index("profile_user", "type", "deleted", "content.userId", "content.profileId"));
+		indexes.add(index("profile_social", "type", "deleted", "content.socialId", "content.profileId"));
+		// _id supports the paginated attribute search
+		indexes.add(index("profile_attrs", "type", "deleted", "content.profileId", "_id"));
+		indexes.add(index("profile_tombstones", "type", "deleted", "updateTime"));
+		indexes.add(index("profile_changes", "type", "deleted", "content.userId", "updateTime"));
+		for (String attr : getIndexedAttributes()) {
+			indexes.add(index(ProfileStorage.attributeIndexName(attr), "type", "deleted", "content.profileId",
+					"content.content." + attr, "_id"));
+		}
+		return indexes;
+	}
+
+	/**
+	 * @return equality fields of the queries run by {@link ProfileStorage}
+	 */
+	protected Map<String, List<String>> getQueryShapes() {
+		Map<String, List<String>> shapes = new LinkedHashMap<String, List<String>>();
+		shapes.put("findExtendedProfile", Arrays.asList("type", "deleted", "content.userId", "content.profileId"));
+		shapes.put("findExtendedProfiles(userId)", Arrays.asList("type", "deleted", "content.userId"));
+		shapes.put("findExtendedProfiles(profileId,attrs)", Arrays.asList("type", "deleted", "content.profileId"));
+		shapes.put("getObjectByEntityId", Arrays.asList("type", "deleted", "content.socialId"));
+		shapes.put("getObjectByEntityId(profileId)", Arrays.asList("type", "deleted", "content.socialId", "content.profileId"));
+		shapes.put("purgeDeletedExtendedProfiles", Arrays.asList("type", "deleted", "updateTime"));
+		shapes.put("findExtendedProfileChanges", Arrays.asList("type", "deleted", "content.userId", "updateTime"));
+		for (String attr : getIndexedAttributes()) {
+			shapes.put("findExtendedProfiles(profileId,{" + attr + "})",
+					Arrays.asList("type", "deleted", "content.profileId", "content.content." + attr));
+		}
+		return shapes;
+	}
+
+	private Set<String> getIndexedAttributes() {
+		Set<String> attrs = new TreeSet<String>();
+		for (Set<String> profileAttrs : storage.getAttributeIndexes().values()) {
+			attrs.addAll(profileAttrs);
+		}
+		return attrs;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		IndexOperations ops = storage.getIndexOperations();
+		List<Index> requested = new ArrayList<Index>();
+		if (createIndexes) {
+			for (Index index : getIndexes()) {
+				try {
+					storage.ensureIndexInBackground(index);
+					requested.add(index);
+				} catch (Exception e) {
+					logger.error("Exception creating index " + index, e);
+				}
+			}
+			try {
+				storage.ensureProfileKeyIndex();
+			} catch (Exception e) {
+				logger.error("Exception creating profile key index", e);
+			}
+		}
+
+		List<String> missing = new ArrayList<String>();
+		List<String> building = new ArrayList<String>();
+		List<IndexInfo> indexes = ops.getIndexInfo();
+		Set<String> names = readIndexNames(indexes);
+		storage.setIndexNames(names);
+		for (Map.Entry<String, List<String>> shape : getQueryShapes().entrySet()) {
+			if (isCovered(shape.getValue(), indexes)) {
+				continue;
+			}
+			if (isRequested(shape.getValue(), requested)) {
+				logger.warn(String.format("Index for query %s on fields %s still building", shape.getKey(),
+						shape.getValue()));
+				building.add(shape.getKey());
+			} else {
+				logger.warn(String.format("No index for query %s on fields %s", shape.getKey(), shape.getValue()));
+				missing.add(shape.getKey());
+			}
+		}
+		if (!missing.isEmpty() && failOnMissingIndexes) {
+			throw new IllegalStateException("Missing indexes for queries " + missing);
+		}
+		if (!building.isEmpty()) {
+			recheck(requested);
+		}
+	}
+
+	/**
+	 * Waits in background for the requested indexes, updating the indexes
+	 * used by the storage as they are built
+	 */
+	private void recheck(final List<Index> requested) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(RECHECK_INTERVAL);
+						Set<String> names = readIndexNames(storage.getIndexOperations().getIndexInfo());
+						storage.setIndexNames(names);
+						if (names.containsAll(names(requested))) {
+							logger.info("All the profile indexes are built");
+							return;
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (Exception e) {
+					logger.error("Exception checking the profile indexes", e);
+				}
+			}
+		}, "profile-index-check");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static Set<String> readIndexNames(List<IndexInfo> indexes) {
+		Set<String> names = new HashSet<String>();
+		for (IndexInfo info : indexes) {
+			names.add(info.getName());
+		}
+		return names;
+	}
+
+	private static Set<String> names(List<Index> indexes) {
+		Set<String> names = new HashSet<String>();
+		for (Index index : indexes) {
+			names.add((String) index.getIndexOptions().get("name"));
+		}
+		return names;
+	}
+
+	/**
+	 * @return true if some of the requested indexes starts with exactly the
+	 *         given fields
+	 */
+	private static boolean isRequested(List<String> fields, List<Index> requested) {
+		Set<String> required = new HashSet<String>(fields);
+		for (Index index : requested) {
+			List<String> keys = new ArrayList<String>(index.getIndexKeys().keySet());
+			if (keys.size() >= required.size() && new HashSet<String>(keys.subList(0, required.size())).equals(required)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if some index starts with exactly the given fields
+	 */
+	private static boolean isCovered(List<String> fields, List<IndexInfo> indexes) {
+		Set<String> required = new HashSet<String>(fields);
+		for (IndexInfo info : indexes) {
+			List<IndexField> keys = info.getIndexFields();
+			if (keys.size() < required.size()) continue;
+			Set<String> prefix = new HashSet<String>();
+			for (IndexField key : keys.subList(0, required.size())) {
+				prefix.add(key.getKey());
+			}
+			if (prefix.equals(required)) return true;
+		}
+		return false;
+	}
+
+	private static Index index(String name, String... keys) {
+		Index index = new Index().named(name);
+		for (String key : keys) {
+			index.on(key, Order.ASCENDING);
+		}
+		return index;
+	}
+}
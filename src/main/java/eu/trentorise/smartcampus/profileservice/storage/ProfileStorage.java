@@ -15,12 +15,38 @@
  ******************************************************************************/
 package eu.trentorise.smartcampus.profileservice.storage;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.apache.log4j.Logger;
+import org.bson.BSON;
+import org.springframework.data.mongodb.core.IndexOperations;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Order;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
 
 import eu.trentorise.smartcampus.presentation.common.exception.DataException;
 import eu.trentorise.smartcampus.presentation.storage.sync.mongo.BasicObjectSyncMongoStorage;
@@ -28,24 +54,193 @@ import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
 
 public class ProfileStorage extends BasicObjectSyncMongoStorage {
 
+	private static final Logger logger = Logger.getLogger(ProfileStorage.class);
+
+	private static final String PENDING_LINKS = "pendingSocialLink";
+
+	/**
+	 * one document for each live profile, with the (userId, profileId) pair
+	 * as _id
+	 */
+	private static final String PROFILE_KEYS = "extendedProfileKey";
+
+	/**
+	 * _id of the marker stored once all the existing profiles own their key
+	 */
+	private static final String KEYS_COMPLETE = "complete";
+
+	/**
+	 * settings of the profile data shared by all the instances
+	 */
+	private static final String PROFILE_META = "extendedProfileMeta";
+
+	/**
+	 * _id of the document holding the purge horizon
+	 */
+	private static final String PURGE_HORIZON = "purgeHorizon";
+
+	/**
+	 * max milliseconds the purge horizon read by an instance is reused
+	 */
+	public static final long PURGE_HORIZON_REFRESH = 60000;
+
+	/**
+	 * max milliseconds an instance reuses the absence of the marker of the
+	 * complete pairs
+	 */
+	private static final long KEYS_COMPLETE_REFRESH = 60000;
+
+	/**
+	 * max number of values passed to a single $in query by the bulk lookups
+	 */
+	private int bulkChunkSize = 500;
+
+	/**
+	 * max attempts of a conditional write on the version of a profile before
+	 * giving up under concurrent writes
+	 */
+	private int writeAttempts = 5;
+
+	/**
+	 * content attributes indexed for each profileId
+	 */
+	private Map<String, Set<String>> attributeIndexes = Collections.emptyMap();
+
+	private volatile Set<String> indexNames = Collections.emptySet();
+
+	private volatile boolean profileKeysComplete;
+
+	private volatile long profileKeysCompleteReadAt;
+
+	private volatile long purgeHorizon;
+
+	private volatile long purgeHorizonReadAt;
+
 	public ProfileStorage(MongoOperations mongoTemplate) {
 		super(mongoTemplate);
 	}
-	public ExtendedProfile findExtendedProfile(String userId, String profileId) {
-		Criteria criteria = new Criteria();
-		criteria = Criteria.where("content.userId").is(userId)
-				.and("content.profileId")
-				.is(profileId);
-		criteria.and("type").is(ExtendedProfile.class.getCanonicalName());
-		criteria.and("deleted").is(false);
 
-		List<ExtendedProfile> profiles = find(Query.query(criteria),
-				ExtendedProfile.class);
-		if (!profiles.isEmpty()) {
-			return profiles.get(0);
-		} else {
-			return null;
+	public int getBulkChunkSize() {
+		return bulkChunkSize;
+	}
+
+	public void setBulkChunkSize(int bulkChunkSize) {
+		this.bulkChunkSize = bulkChunkSize;
+	}
+
+	public int getWriteAttempts() {
+		return writeAttempts;
+	}
+
+	public void setWriteAttempts(int writeAttempts) {
+		this.writeAttempts = writeAttempts;
+	}
+
+	/**
+	 * @return content attributes indexed for each profileId
+	 */
+	public Map<String, Set<String>> getAttributeIndexes() {
+		return attributeIndexes;
+	}
+
+	/**
+	 * @param spec
+	 *            content attributes to index for each profileId, in the form
+	 *            <code>profileId:attr1,attr2;profileId2:attr3</code>
+	 */
+	public void setAttributeIndexes(String spec) {
+		Map<String, Set<String>> indexes = new HashMap<String, Set<String>>();
+		if (spec != null) {
+			for (String profileSpec : spec.split(";")) {
+				int sep = profileSpec.indexOf(':');
+				if (sep <= 0) continue;
+				Set<String> attrs = new LinkedHashSet<String>();
+				for (String attr : profileSpec.substring(sep + 1).split(",")) {
+					if (attr.trim().length() > 0) attrs.add(attr.trim());
+				}
+				indexes.put(profileSpec.substring(0, sep).trim(), attrs);
+			}
 		}
+		this.attributeIndexes = indexes;
+	}
+
+	/**
+	 * @param attr
+	 * @return name of the index on the given content attribute
+	 */
+	public static String attributeIndexName(String attr) {
+		return "profile_attr_" + attr;
+	}
+
+	/**
+	 * @param indexNames
+	 *            names of the indexes present on the profile collection, only
+	 *            these are used to route the attribute searches
+	 */
+	public void setIndexNames(Set<String> indexNames) {
+		this.indexNames = indexNames;
+	}
+
+	/**
+	 * @return index operations on the collection storing the profiles
+	 */
+	public IndexOperations getIndexOperations() {
+		return mongoTemplate.indexOps(getObjectClass());
+	}
+
+	/**
+	 * Creates an index on the collection storing the profiles in background,
+	 * so that the collection stays available while the index is built
+	 * 
+	 * @param index
+	 */
+	public void ensureIndexInBackground(IndexDefinition index) {
+		DBObject options = new BasicDBObject();
+		if (index.getIndexOptions() != null) {
+			options.putAll(index.getIndexOptions());
+		}
+		options.put("background", true);
+		mongoTemplate.getCollection(mongoTemplate.getCollectionName(getObjectClass())).ensureIndex(
+				index.getIndexKeys(), options);
+	}
+
+	public ExtendedProfile findExtendedProfile(String userId, String profileId) {
+		return findFirst(profileCriteria(userId, profileId));
+	}
+
+	/**
+	 * Reads a single extended profile loading only the given properties
+	 * 
+	 * @param userId
+	 * @param profileId
+	 * @param fields
+	 *            {@link ExtendedProfile} properties to load, all if empty
+	 * @return the profile or null if not present
+	 */
+	public ExtendedProfile findExtendedProfile(String userId, String profileId, String... fields) {
+		return findFirst(profileCriteria(userId, profileId), fields);
+	}
+
+	/**
+	 * @param userId
+	 * @param profileId
+	 * @return true if the user has the given extended profile
+	 */
+	public boolean existsExtendedProfile(String userId, String profileId) {
+		return mongoTemplate.count(Query.query(profileCriteria(userId, profileId)), getObjectClass()) > 0;
+	}
+
+	/**
+	 * @param userId
+	 * @param profileId
+	 * @return the live profiles of the user with the given profileId, with
+	 *         only their id and update time; more than one only for the
+	 *         duplicates created before the pairs were reserved
+	 */
+	public List<ExtendedProfile> findExtendedProfileCopies(String userId, String profileId) {
+		Query query = Query.query(profileCriteria(userId, profileId));
+		query.fields().include("content.id").include("content.updateTime");
+		return find(query, ExtendedProfile.class);
 	}
 
 	public List<ExtendedProfile> findExtendedProfiles(String userId) {
@@ -59,49 +254,880 @@ public class ProfileStorage extends BasicObjectSyncMongoStorage {
 		return profiles;
 	}
 
-	public List<ExtendedProfile> findExtendedProfiles(String profileId, Map<String, Object> profileAttrs) {
-		Criteria criteria = new Criteria();
-		criteria = Criteria.where("content.profileId").is(profileId);
-		for (String key : profileAttrs.keySet()) {
-			criteria.and("content.content." + key).is(profileAttrs.get(key));
+	/**
+	 * Reads the extended profiles of a set of users with a single $in query
+	 * per chunk of {@link #getBulkChunkSize()} userIds
+	 * 
+	 * @param userIds
+	 * @param profileId
+	 *            if not null restricts the result to the given profile
+	 * @return profiles of the users, in no particular order
+	 */
+	public List<ExtendedProfile> findExtendedProfilesByUsers(Collection<String> userIds, String profileId) {
+		return findExtendedProfilesByUsers(userIds, profileId, new String[0]);
+	}
+
+	/**
+	 * Same as {@link #findExtendedProfilesByUsers(Collection, String)},
+	 * loading only the given properties
+	 * 
+	 * @param fields
+	 *            {@link ExtendedProfile} properties to load, all if empty
+	 */
+	public List<ExtendedProfile> findExtendedProfilesByUsers(Collection<String> userIds, String profileId,
+			String... fields) {
+		List<ExtendedProfile> profiles = new ArrayList<ExtendedProfile>();
+		for (List<String> chunk : partition(userIds, bulkChunkSize)) {
+			Criteria criteria = new Criteria();
+			criteria = Criteria.where("content.userId").in(chunk);
+			if (profileId != null) criteria.and("content.profileId").is(profileId);
+			criteria.and("type").is(ExtendedProfile.class.getCanonicalName());
+			criteria.and("deleted").is(false);
+
+			Query query = Query.query(criteria);
+			for (String field : fields) {
+				query.fields().include("content." + field);
+			}
+			profiles.addAll(find(query, ExtendedProfile.class));
 		}
-		criteria.and("type").is(ExtendedProfile.class.getCanonicalName());
-		criteria.and("deleted").is(false);
+		return profiles;
+	}
 
-		List<ExtendedProfile> profiles = find(Query.query(criteria),
+	/**
+	 * Iterates over the profiles of a list of users in the order of the list,
+	 * reading the profiles of <code>chunkSize</code> users at a time
+	 * 
+	 * @param userIds
+	 * @param profileId
+	 *            if not null restricts the result to the given profile, users
+	 *            without it have a null entry
+	 * @param chunkSize
+	 */
+	public Iterator<ExtendedProfile> iterateExtendedProfilesByUsers(List<String> userIds, final String profileId,
+			int chunkSize) {
+		return new UserChunkIterator(userIds, chunkSize, profileId != null) {
+			@Override
+			protected List<ExtendedProfile> findProfiles(LinkedHashSet<String> userIds) {
+				return findExtendedProfilesByUsers(userIds, profileId);
+			}
+		};
+	}
+
+	/**
+	 * Reads the profiles of a set of users updated in the interval
+	 * (since, until], with a single $in query per chunk of
+	 * {@link #getBulkChunkSize()} userIds
+	 * 
+	 * @param userIds
+	 * @param profileId
+	 *            if not null restricts the result to the given profile
+	 * @param since
+	 * @param until
+	 * @param deleted
+	 *            true to read the deleted profiles, loading only their id,
+	 *            userId and profileId
+	 * @return the changed profiles, in no particular order
+	 */
+	public List<ExtendedProfile> findExtendedProfileChanges(Collection<String> userIds, String profileId,
+			long since, long until, boolean deleted) {
+		List<ExtendedProfile> profiles = new ArrayList<ExtendedProfile>();
+		for (List<String> chunk : partition(userIds, bulkChunkSize)) {
+			Criteria criteria = new Criteria();
+			criteria = Criteria.where("content.userId").in(chunk);
+			if (profileId != null) criteria.and("content.profileId").is(profileId);
+			criteria.and("type").is(ExtendedProfile.class.getCanonicalName());
+			criteria.and("deleted").is(deleted);
+			criteria.and("updateTime").gt(since).lte(until);
+
+			Query query = Query.query(criteria);
+			if (deleted) {
+				query.fields().include("content.id").include("content.userId").include("content.profileId");
+			}
+			profiles.addAll(find(query, ExtendedProfile.class));
+		}
+		return profiles;
+	}
+
+	public List<ExtendedProfile> findExtendedProfiles(String profileId, Map<String, Object> profileAttrs) {
+		List<ExtendedProfile> profiles = find(attributeQuery(profileId, profileAttrs),
 				ExtendedProfile.class);
 		return profiles;
 	}
 
-	public void deleteExtendedProfile(String extProfileId) throws DataException {
-		deleteObjectById(extProfileId);
+	/**
+	 * Reads a page of the profiles matching the given attributes, sorted by
+	 * id
+	 * 
+	 * @param profileId
+	 * @param profileAttrs
+	 * @param after
+	 *            id of the last profile of the previous page, null for the
+	 *            first page
+	 * @param limit
+	 *            max size of the page
+	 * @return the page, the last profile id is the continuation token of the
+	 *         next page
+	 */
+	public List<ExtendedProfile> findExtendedProfiles(String profileId, Map<String, Object> profileAttrs,
+			String after, int limit) {
+		Query query = attributeQuery(profileId, profileAttrs);
+		if (after != null) query.addCriteria(Criteria.where("_id").gt(after));
+		query.limit(limit);
+		query.sort().on("_id", Order.ASCENDING);
+		return find(query, ExtendedProfile.class);
 	}
 
-	public void deleteExtendedProfile(String userId, String profileId) throws DataException {
-		Criteria criteria = new Criteria();
-		criteria = Criteria.where("content.userId").is(userId)
-				.and("content.profileId").is(profileId);
-		criteria.and("type").is(ExtendedProfile.class.getCanonicalName());
+	/**
+	 * Iterates over all the profiles matching the given attributes, reading
+	 * them one page at a time so that at most <code>pageSize</code> profiles
+	 * are in memory
+	 * 
+	 * @param profileId
+	 * @param profileAttrs
+	 * @param pageSize
+	 */
+	public Iterator<ExtendedProfile> iterateExtendedProfiles(final String profileId,
+			final Map<String, Object> profileAttrs, final int pageSize) {
+		return new PageIterator(pageSize) {
+			@Override
+			protected List<ExtendedProfile> nextPage(String after, int limit) {
+				return findExtendedProfiles(profileId, profileAttrs, after, limit);
+			}
+		};
+	}
+
+	/**
+	 * Reads a page of all the live profiles, sorted by id
+	 * 
+	 * @param after
+	 *            id of the last profile of the previous page, null for the
+	 *            first page
+	 * @param limit
+	 * @param fields
+	 *            {@link ExtendedProfile} properties to load, all if empty
+	 */
+	public List<ExtendedProfile> findAllExtendedProfiles(String after, int limit, String... fields) {
+		Criteria criteria = Criteria.where("type").is(ExtendedProfile.class.getCanonicalName());
 		criteria.and("deleted").is(false);
+		Query query = Query.query(criteria);
+		if (after != null) query.addCriteria(Criteria.where("_id").gt(after));
+		for (String field : fields) {
+			query.fields().include("content." + field);
+		}
+		query.limit(limit);
+		query.sort().on("_id", Order.ASCENDING);
+		return find(query, ExtendedProfile.class);
+	}
 
-		List<ExtendedProfile> profiles = find(Query.query(criteria),
-				ExtendedProfile.class);
-		if (!profiles.isEmpty()) {
-			deleteObject(profiles.get(0));
+	/**
+	 * Iterates over all the live profiles one page at a time
+	 * 
+	 * @param pageSize
+	 * @param fields
+	 *            {@link ExtendedProfile} properties to load, all if empty
+	 */
+	public Iterator<ExtendedProfile> iterateAllExtendedProfiles(int pageSize, final String... fields) {
+		return new PageIterator(pageSize) {
+			@Override
+			protected List<ExtendedProfile> nextPage(String after, int limit) {
+				return findAllExtendedProfiles(after, limit, fields);
+			}
+		};
+	}
+
+	/**
+	 * Reserves the (userId, profileId) pair for a new profile. The pair is the
+	 * _id of a document of a separate collection, so the reservation is a
+	 * single insert that fails on the unique _id when the profile already
+	 * exists, also under concurrent creates.
+	 * 
+	 * @param userId
+	 * @param profileId
+	 * @param extProfileId
+	 *            id of the profile being created
+	 * @return false if the pair is owned by another profile
+	 */
+	public boolean reserveProfileKey(String userId, String profileId, String extProfileId) {
+		try {
+			profileKeys().insert(new BasicDBObject("_id", profileKey(userId, profileId))
+					.append("profile", extProfileId), WriteConcern.SAFE);
+			return true;
+		} catch (MongoException.DuplicateKey e) {
+			return false;
 		}
 	}
+
+	/**
+	 * @param userId
+	 * @param profileId
+	 * @return id of the profile owning the (userId, profileId) pair, null if
+	 *         not reserved
+	 */
+	public String findProfileKeyOwner(String userId, String profileId) {
+		DBObject key = profileKeys().findOne(new BasicDBObject("_id", profileKey(userId, profileId)));
+		return key == null ? null : (String) key.get("profile");
+	}
+
+	/**
+	 * Moves the (userId, profileId) pair from a profile to another one
+	 * 
+	 * @return false if the pair is not owned by <code>from</code> anymore
+	 */
+	public boolean moveProfileKey(String userId, String profileId, String from, String to) {
+		WriteResult result = profileKeys().update(
+				new BasicDBObject("_id", profileKey(userId, profileId)).append("profile", from),
+				new BasicDBObject("$set", new BasicDBObject("profile", to)), false, false, WriteConcern.SAFE);
+		return result.getN() > 0;
+	}
+
+	/**
+	 * Releases the pair owned by the given profile, if any
+	 * 
+	 * @param extProfileId
+	 */
+	public void releaseProfileKey(String extProfileId) {
+		profileKeys().remove(new BasicDBObject("profile", extProfileId), WriteConcern.SAFE);
+	}
+
+	/**
+	 * @return true if every existing profile owns its (userId, profileId)
+	 *         pair, so that the reservation alone guarantees uniqueness. The
+	 *         marker is read at most once every {@value #KEYS_COMPLETE_REFRESH}
+	 *         ms until found.
+	 */
+	public boolean isProfileKeysComplete() {
+		long now = System.currentTimeMillis();
+		if (!profileKeysComplete && now - profileKeysCompleteReadAt > KEYS_COMPLETE_REFRESH) {
+			profileKeysComplete = profileKeys().findOne(new BasicDBObject("_id", KEYS_COMPLETE)) != null;
+			profileKeysCompleteReadAt = now;
+		}
+		return profileKeysComplete;
+	}
+
+	/**
+	 * @return the ids of the profiles owning a (userId, profileId) pair
+	 */
+	public Iterator<String> iterateProfileKeyOwners(int batchSize) {
+		final DBCursor cursor = profileKeys().find(new BasicDBObject("profile", new BasicDBObject("$exists", true)),
+				new BasicDBObject("profile", 1)).batchSize(batchSize);
+		return new Iterator<String>() {
+			@Override
+			public boolean hasNext() {
+				boolean next = cursor.hasNext();
+				if (!next) {
+					cursor.close();
+				}
+				return next;
+			}
+
+			@Override
+			public String next() {
+				return (String) cursor.next().get("profile");
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @param extProfileIds
+	 * @return the given ids of the profiles existing and not deleted
+	 */
+	public Set<String> findLiveExtendedProfileIds(Collection<String> extProfileIds) {
+		Set<String> live = new HashSet<String>();
+		for (List<String> chunk : partition(extProfileIds, bulkChunkSize)) {
+			Criteria criteria = Criteria.where("id").in(chunk);
+			criteria.and("type").is(ExtendedProfile.class.getCanonicalName());
+			criteria.and("deleted").is(false);
+			Query query = Query.query(criteria);
+			query.fields().include("content.id");
+			for (ExtendedProfile p : find(query, ExtendedProfile.class)) {
+				live.add(p.getId());
+			}
+		}
+		return live;
+	}
+
+	public void markProfileKeysComplete() {
+		profileKeys().save(new BasicDBObject("_id", KEYS_COMPLETE).append("time", System.currentTimeMillis()));
+		profileKeysComplete = true;
+	}
+
+	/**
+	 * Creates in background the index used to release the pair of a deleted
+	 * profile
+	 */
+	public void ensureProfileKeyIndex() {
+		profileKeys().ensureIndex(new BasicDBObject("profile", 1),
+				new BasicDBObject("name", "profile_key_owner").append("background", true));
+	}
+
+	/**
+	 * Replaces the content of an extended profile with a conditional update
+	 * on its current version, read without the content. As for
+	 * {@link #compareAndSetExtendedProfileContent} the new version is greater
+	 * than the previous one. A version changed meanwhile by another writer is
+	 * read again, at most writeAttempts times.
+	 * 
+	 * @param userId
+	 * @param profileId
+	 * @param content
+	 * @return the new version, or -1 if the profile does not exist
+	 * @throws ConcurrentUpdateException
+	 *             if the profile is written by others at every attempt
+	 */
+	public long updateExtendedProfileContent(String userId, String profileId, Map<String, Object> content) {
+		for (int attempt = 0; attempt < writeAttempts; attempt++) {
+			Long current = currentVersion(userId, profileId);
+			if (current == null) {
+				return -1;
+			}
+			long version = compareAndSetExtendedProfileContent(userId, profileId, content,
+					Collections.singleton(current));
+			// otherwise written meanwhile by another request, retried on the new version
+			if (version >= 0) {
+				return version;
+			}
+		}
+		throw concurrentUpdate(userId, profileId);
+	}
+
+	/**
+	 * Replaces the content of several extended profiles with one update
+	 * command (a write command of MongoDB 2.6) per chunk of
+	 * {@link #getBulkChunkSize()} profiles. Each statement is conditional on
+	 * the version the profile was read with; the profiles of a chunk all get
+	 * the same new version, greater than the versions read. The profiles
+	 * updated are read back only when the command did not update them all.
+	 * 
+	 * @param updates
+	 *            the profiles with their userId, profileId, new content and
+	 *            the version they were read with
+	 * @return the [userId, profileId] pairs of the profiles updated; the
+	 *         others, written meanwhile or deleted, or the whole chunk if the
+	 *         server does not support the command, are left to the caller
+	 */
+	public Set<List<String>> updateExtendedProfileContents(Collection<ExtendedProfile> updates) {
+		Set<List<String>> updated = new HashSet<List<String>>();
+		String collection = mongoTemplate.getCollectionName(getObjectClass());
+		for (List<ExtendedProfile> chunk : partition(updates, bulkChunkSize)) {
+			List<Long> versions = new ArrayList<Long>();
+			Set<String> userIds = new HashSet<String>();
+			Set<List<String>> keys = new HashSet<List<String>>();
+			for (ExtendedProfile p : chunk) {
+				versions.add(p.getUpdateTime());
+				userIds.add(p.getUserId());
+				keys.add(Arrays.asList(p.getUserId(), p.getProfileId()));
+			}
+			long version = nextVersion(versions);
+			BasicDBList statements = new BasicDBList();
+			for (ExtendedProfile p : chunk) {
+				Criteria criteria = profileCriteria(p.getUserId(), p.getProfileId()).and("content.updateTime")
+						.is(p.getUpdateTime());
+				DBObject set = new BasicDBObject("content.content", p.getContent())
+						.append("content.updateTime", version).append("updateTime", version);
+				statements.add(new BasicDBObject("q", Query.query(criteria).getQueryObject()).append("u",
+						new BasicDBObject("$set", set)));
+			}
+			CommandResult result;
+			try {
+				result = mongoTemplate.executeCommand(new BasicDBObject("update", collection)
+						.append("updates", statements).append("ordered", false));
+			} catch (RuntimeException e) {
+				logger.warn("Bulk update of extended profiles not executed: " + e.getMessage());
+				continue;
+			}
+			if (!result.ok()) {
+				logger.warn("Bulk update of extended profiles not executed: " + result.getErrorMessage());
+				continue;
+			}
+			Object n = result.get("n");
+			if (n instanceof Number && ((Number) n).intValue() == chunk.size()) {
+				updated.addAll(keys);
+				continue;
+			}
+			Criteria criteria = Criteria.where("content.userId").in(userIds);
+			criteria.and("type").is(ExtendedProfile.class.getCanonicalName());
+			criteria.and("deleted").is(false);
+			criteria.and("content.updateTime").is(version);
+			Query query = Query.query(criteria);
+			query.fields().include("content.userId").include("content.profileId");
+			for (ExtendedProfile p : find(query, ExtendedProfile.class)) {
+				List<String> key = Arrays.asList(p.getUserId(), p.getProfileId());
+				if (keys.contains(key)) {
+					updated.add(key);
+				}
+			}
+		}
+		return updated;
+	}
+
+	/**
+	 * @return the update time of the profile, null if the profile does not
+	 *         exist
+	 */
+	private Long currentVersion(String userId, String profileId) {
+		ExtendedProfile profile = findFirst(profileCriteria(userId, profileId), "updateTime");
+		return profile == null ? null : profile.getUpdateTime();
+	}
+
+	/**
+	 * @return a version greater than the given ones, the current time unless
+	 *         the clocks of the writers are skewed
+	 */
+	private static long nextVersion(Collection<Long> versions) {
+		return Math.max(System.currentTimeMillis(), Collections.max(versions) + 1);
+	}
+
+	/**
+	 * Replaces the content of an extended profile only if its update time is
+	 * one of the expected versions, with a single atomic update. The new
+	 * update time is always greater than the expected ones, so that each
+	 * successful write produces a new version.
+	 * 
+	 * @param userId
+	 * @param profileId
+	 * @param content
+	 * @param expectedVersions
+	 * @return the new version, or -1 if the profile does not exist or has a
+	 *         different version
+	 */
+	public long compareAndSetExtendedProfileContent(String userId, String profileId, Map<String, Object> content,
+			Collection<Long> expectedVersions) {
+		if (expectedVersions.isEmpty()) {
+			return -1;
+		}
+		long version = nextVersion(expectedVersions);
+		Criteria criteria = profileCriteria(userId, profileId).and("content.updateTime").in(expectedVersions);
+		Update update = new Update().set("content.content", content)
+				.set("content.updateTime", version)
+				.set("updateTime", version);
+		WriteResult result = mongoTemplate.updateFirst(Query.query(criteria), update, getObjectClass());
+		return result.getN() > 0 ? version : -1;
+	}
+
+	/**
+	 * Applies a JSON merge patch (RFC 7386) to the content of an extended
+	 * profile with a conditional update on its current version: null values
+	 * remove the attribute, objects are merged recursively into objects and
+	 * replace any other value, any other value replaces the attribute. Only
+	 * the version and the attributes patched with an object are read. As for
+	 * the other writes the new version is greater than the previous one. A
+	 * version changed meanwhile by another writer is read again, at most
+	 * writeAttempts times.
+	 * 
+	 * @param userId
+	 * @param profileId
+	 * @param patch
+	 * @return the new version, or -1 if the profile does not exist
+	 * @throws IllegalArgumentException
+	 *             if an attribute name contains '.' or starts with '$'
+	 * @throws ConcurrentUpdateException
+	 *             if the profile is written by others at every attempt
+	 */
+	public long patchExtendedProfileContent(String userId, String profileId, Map<String, Object> patch) {
+		checkNames(patch);
+		List<String> fields = new ArrayList<String>();
+		fields.add("updateTime");
+		for (Map.Entry<String, Object> entry : patch.entrySet()) {
+			if (entry.getValue() instanceof Map) {
+				fields.add("content." + entry.getKey());
+			}
+		}
+		for (int attempt = 0; attempt < writeAttempts; attempt++) {
+			ExtendedProfile profile = findFirst(profileCriteria(userId, profileId),
+					fields.toArray(new String[fields.size()]));
+			if (profile == null) {
+				return -1;
+			}
+			long current = profile.getUpdateTime();
+			long version = nextVersion(Collections.singleton(current));
+			Update update = new Update().set("content.updateTime", version).set("updateTime", version);
+			toUpdate("content.content", patch, profile.getContent(), update);
+			Criteria criteria = profileCriteria(userId, profileId).and("content.updateTime").is(current);
+			// otherwise written meanwhile by another request, retried on the new version
+			if (mongoTemplate.updateFirst(Query.query(criteria), update, getObjectClass()).getN() > 0) {
+				return version;
+			}
+		}
+		throw concurrentUpdate(userId, profileId);
+	}
+
+	private ConcurrentUpdateException concurrentUpdate(String userId, String profileId) {
+		return new ConcurrentUpdateException(String.format(
+				"extended profile userId:%s, profileId:%s written concurrently at %d attempts", userId, profileId,
+				writeAttempts));
+	}
+
+	/**
+	 * Translates a merge patch into the update of the given target
+	 * 
+	 * @param path
+	 *            path of the target in the stored document
+	 * @param patch
+	 * @param target
+	 *            the current value of the patched object, with at least the
+	 *            attributes patched with an object, null if not present
+	 * @param update
+	 */
+	@SuppressWarnings("unchecked")
+	static void toUpdate(String path, Map<String, Object> patch, Map<String, Object> target, Update update) {
+		for (Map.Entry<String, Object> entry : patch.entrySet()) {
+			String key = entry.getKey();
+			Object value = entry.getValue();
+			Object current = target == null ? null : target.get(key);
+			if (value == null) {
+				update.unset(path + "." + key);
+			} else if (value instanceof Map && current instanceof Map) {
+				toUpdate(path + "." + key, (Map<String, Object>) value, (Map<String, Object>) current, update);
+			} else if (value instanceof Map) {
+				// a scalar, an array or nothing is replaced by the patch
+				// applied to an empty object
+				update.set(path + "." + key, withoutNulls((Map<String, Object>) value));
+			} else {
+				update.set(path + "." + key, value);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> withoutNulls(Map<String, Object> patch) {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Object> entry : patch.entrySet()) {
+			Object value = entry.getValue();
+			if (value instanceof Map) {
+				result.put(entry.getKey(), withoutNulls((Map<String, Object>) value));
+			} else if (value != null) {
+				result.put(entry.getKey(), value);
+			}
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void checkNames(Map<String, Object> patch) {
+		for (Map.Entry<String, Object> entry : patch.entrySet()) {
+			String key = entry.getKey();
+			if (key.length() == 0 || key.contains(".") || key.startsWith("$")) {
+				throw new IllegalArgumentException("Invalid attribute name: " + key);
+			}
+			if (entry.getValue() instanceof Map) {
+				checkNames((Map<String, Object>) entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Records that the deleted profiles not updated since the given time may
+	 * be purged, to be called before purging them. The horizon never moves
+	 * back.
+	 * 
+	 * @param horizon
+	 */
+	public void recordPurgeHorizon(long horizon) {
+		try {
+			profileMeta().update(
+					new BasicDBObject("_id", PURGE_HORIZON).append("time", new BasicDBObject("$lt", horizon)),
+					new BasicDBObject("$set", new BasicDBObject("time", horizon)), true, false, WriteConcern.SAFE);
+		} catch (MongoException.DuplicateKey e) {
+			// a later horizon is already recorded
+		}
+		purgeHorizonReadAt = 0;
+	}
+
+	/**
+	 * @return time before which the deleted profiles may have been purged, 0
+	 *         if never purged; read again at most every
+	 *         {@link #PURGE_HORIZON_REFRESH} milliseconds
+	 */
+	public long getPurgeHorizon() {
+		long now = System.currentTimeMillis();
+		if (now - purgeHorizonReadAt > PURGE_HORIZON_REFRESH) {
+			DBObject horizon = profileMeta().findOne(new BasicDBObject("_id", PURGE_HORIZON));
+			purgeHorizon = horizon == null ? 0 : ((Number) horizon.get("time")).longValue();
+			purgeHorizonReadAt = now;
+		}
+		return purgeHorizon;
+	}
+
+	/**
+	 * Physically removes a batch of deleted profiles not updated since the
+	 * given time. The profiles are kept as deleted by the sync storage so
+	 * that clients can be notified; once removed, clients that synchronized
+	 * before <code>before</code> need a full synchronization.
+	 * 
+	 * @param before
+	 *            update time limit of the removed profiles
+	 * @param limit
+	 *            max number of profiles removed
+	 * @return removed documents and their size
+	 */
+	public PurgeResult purgeDeletedExtendedProfiles(long before, int limit) {
+		DBCollection collection = mongoTemplate.getCollection(mongoTemplate.getCollectionName(getObjectClass()));
+		DBObject query = new BasicDBObject("type", ExtendedProfile.class.getCanonicalName())
+				.append("deleted", true)
+				.append("updateTime", new BasicDBObject("$lt", before));
+		List<Object> ids = new ArrayList<Object>();
+		long bytes = 0;
+		DBCursor cursor = collection.find(query).limit(limit);
+		try {
+			while (cursor.hasNext()) {
+				DBObject tombstone = cursor.next();
+				ids.add(tombstone.get("_id"));
+				bytes += BSON.encode(tombstone).length;
+			}
+		} finally {
+			cursor.close();
+		}
+		if (ids.isEmpty()) {
+			return new PurgeResult(0, 0);
+		}
+		// deleted is checked again, the object may have been restored meanwhile
+		WriteResult result = collection.remove(
+				new BasicDBObject("_id", new BasicDBObject("$in", ids)).append("deleted", true), WriteConcern.SAFE);
+		return new PurgeResult(result.getN(), result.getN() == ids.size() ? bytes : bytes * result.getN()
+				/ ids.size());
+	}
+
+	public void deleteExtendedProfile(String extProfileId) throws DataException {
+		deleteObjectById(extProfileId);
+		releaseProfileKey(extProfileId);
+	}
+
+	/**
+	 * @param userId
+	 * @param profileId
+	 * @return the deleted profile with only its id, userId, profileId and
+	 *         socialId, null if not present
+	 * @throws DataException
+	 */
+	public ExtendedProfile deleteExtendedProfile(String userId, String profileId) throws DataException {
+		ExtendedProfile profile = findFirst(profileCriteria(userId, profileId), "id", "userId", "profileId",
+				"socialId");
+		if (profile != null) {
+			deleteExtendedProfile(profile.getId());
+		}
+		return profile;
+	}
 	/**
 	 * @param entityId
 	 */
 	public ExtendedProfile getObjectByEntityId(Long entityId, String profileId) {
+		return getObjectByEntityId(entityId, profileId, new String[0]);
+	}
+
+	/**
+	 * @param entityId
+	 * @param profileId
+	 *            if not null restricts the lookup to the given profile
+	 * @param fields
+	 *            {@link ExtendedProfile} properties to load, all if empty
+	 */
+	public ExtendedProfile getObjectByEntityId(Long entityId, String profileId, String... fields) {
 		Criteria criteria = new Criteria();
 		criteria = Criteria.where("content.socialId").is(entityId);
 		if (profileId != null) criteria.and("content.profileId").is(profileId);
 		criteria.and("type").is(ExtendedProfile.class.getCanonicalName());
 		criteria.and("deleted").is(false);
 
-		List<ExtendedProfile> profiles = find(Query.query(criteria), ExtendedProfile.class);
+		return findFirst(criteria, fields);
+	}
+
+	/**
+	 * Reads the profiles bound to the given social entities with a single $in
+	 * query per chunk of {@link #getBulkChunkSize()} entityIds
+	 * 
+	 * @param entityIds
+	 * @param profileId
+	 *            if not null restricts the result to the given profile
+	 * @return profiles in the order of the given entityIds, entities without a
+	 *         profile are skipped
+	 */
+	public List<ExtendedProfile> getObjectsByEntityIds(Collection<Long> entityIds, String profileId) {
+		Map<String, ExtendedProfile> bySocialId = new HashMap<String, ExtendedProfile>();
+		for (List<Long> chunk : partition(entityIds, bulkChunkSize)) {
+			// socialId is written as a string but was historically queried as a number
+			List<Object> ids = new ArrayList<Object>(chunk);
+			for (Long entityId : chunk) {
+				ids.add(entityId.toString());
+			}
+			Criteria criteria = new Criteria();
+			criteria = Criteria.where("content.socialId").in(ids);
+			if (profileId != null) criteria.and("content.profileId").is(profileId);
+			criteria.and("type").is(ExtendedProfile.class.getCanonicalName());
+			criteria.and("deleted").is(false);
+
+			for (ExtendedProfile p : find(Query.query(criteria), ExtendedProfile.class)) {
+				if (!bySocialId.containsKey(p.getSocialId())) {
+					bySocialId.put(p.getSocialId(), p);
+				}
+			}
+		}
+		List<ExtendedProfile> profiles = new ArrayList<ExtendedProfile>();
+		for (Long entityId : entityIds) {
+			ExtendedProfile p = bySocialId.get(entityId.toString());
+			if (p != null) profiles.add(p);
+		}
+		return profiles;
+	}
+
+	/**
+	 * Sets the social id of a stored profile with a conditional update on
+	 * its current version, so that as for the other writes the profile gets
+	 * a new, greater version
+	 * 
+	 * @param extProfileId
+	 *            id of the extended profile object
+	 * @param socialId
+	 * @return false if the profile does not exist anymore
+	 * @throws ConcurrentUpdateException
+	 *             if the profile is written by others at every attempt
+	 */
+	public boolean setSocialId(String extProfileId, String socialId) {
+		for (int attempt = 0; attempt < writeAttempts; attempt++) {
+			Criteria criteria = Criteria.where("id").is(extProfileId);
+			criteria.and("type").is(ExtendedProfile.class.getCanonicalName());
+			criteria.and("deleted").is(false);
+			ExtendedProfile profile = findFirst(criteria, "updateTime");
+			if (profile == null) {
+				return false;
+			}
+			long current = profile.getUpdateTime();
+			long version = nextVersion(Collections.singleton(current));
+			Update update = Update.update("content.socialId", socialId).set("content.updateTime", version)
+					.set("updateTime", version);
+			criteria.and("content.updateTime").is(current);
+			if (mongoTemplate.updateFirst(Query.query(criteria), update, getObjectClass()).getN() > 0) {
+				return true;
+			}
+		}
+		throw new ConcurrentUpdateException(String.format(
+				"extended profile %s written concurrently at %d attempts", extProfileId, writeAttempts));
+	}
+
+	public void storePendingSocialLink(PendingSocialLink link) {
+		mongoTemplate.save(link, PENDING_LINKS);
+	}
+
+	/**
+	 * Records the social entity created for a pending link, leaving its lease
+	 * unchanged
+	 * 
+	 * @param id
+	 * @param socialId
+	 */
+	public void setPendingSocialLinkEntity(String id, String socialId) {
+		mongoTemplate.updateFirst(Query.query(Criteria.where("id").is(id)), Update.update("socialId", socialId),
+				PENDING_LINKS);
+	}
+
+	public void removePendingSocialLink(String id) {
+		mongoTemplate.remove(Query.query(Criteria.where("id").is(id)), PENDING_LINKS);
+	}
+
+	/**
+	 * @param limit
+	 * @return pending social links whose next attempt is due, oldest first
+	 */
+	public List<PendingSocialLink> findDuePendingSocialLinks(int limit) {
+		Query query = Query.query(Criteria.where("nextAttempt").lte(System.currentTimeMillis())).limit(limit);
+		query.sort().on("nextAttempt", Order.ASCENDING);
+		return mongoTemplate.find(query, PendingSocialLink.class, PENDING_LINKS);
+	}
+
+	/**
+	 * Atomically reserves a due pending link for the given time, so that it
+	 * is processed by one worker only
+	 * 
+	 * @param id
+	 * @param lease
+	 *            milliseconds the link is reserved for
+	 * @return the link or null if not due or already reserved
+	 */
+	public PendingSocialLink claimPendingSocialLink(String id, long lease) {
+		long now = System.currentTimeMillis();
+		Criteria criteria = Criteria.where("id").is(id).and("nextAttempt").lte(now);
+		return mongoTemplate.findAndModify(Query.query(criteria), Update.update("nextAttempt", now + lease),
+				PendingSocialLink.class, PENDING_LINKS);
+	}
+
+	/**
+	 * Builds the attribute search, routed to the index of one of the searched
+	 * attributes if the profileId has one
+	 */
+	private Query attributeQuery(String profileId, Map<String, Object> profileAttrs) {
+		Criteria criteria = new Criteria();
+		criteria = Criteria.where("content.profileId").is(profileId);
+		for (String key : profileAttrs.keySet()) {
+			criteria.and("content.content." + key).is(profileAttrs.get(key));
+		}
+		criteria.and("type").is(ExtendedProfile.class.getCanonicalName());
+		criteria.and("deleted").is(false);
+
+		Query query = Query.query(criteria);
+		Set<String> indexed = attributeIndexes.get(profileId);
+		if (indexed != null) {
+			for (String key : profileAttrs.keySet()) {
+				if (indexed.contains(key) && indexNames.contains(attributeIndexName(key))) {
+					query.withHint(attributeIndexName(key));
+					break;
+				}
+			}
+		}
+		return query;
+	}
+
+	private DBCollection profileKeys() {
+		return mongoTemplate.getCollection(PROFILE_KEYS);
+	}
+
+	private DBCollection profileMeta() {
+		return mongoTemplate.getCollection(PROFILE_META);
+	}
+
+	private static DBObject profileKey(String userId, String profileId) {
+		return new BasicDBObject("userId", userId).append("profileId", profileId);
+	}
+
+	private Criteria profileCriteria(String userId, String profileId) {
+		Criteria criteria = new Criteria();
+		criteria = Criteria.where("content.userId").is(userId)
+				.and("content.profileId").is(profileId);
+		criteria.and("type").is(ExtendedProfile.class.getCanonicalName());
+		criteria.and("deleted").is(false);
+		return criteria;
+	}
+
+	/**
+	 * Reads at most one matching profile, optionally restricted to the given
+	 * properties
+	 */
+	private ExtendedProfile findFirst(Criteria criteria, String... fields) {
+		Query query = Query.query(criteria).limit(1);
+		for (String field : fields) {
+			query.fields().include("content." + field);
+		}
+		List<ExtendedProfile> profiles = find(query, ExtendedProfile.class);
 		return profiles == null || profiles.isEmpty() ? null : profiles.get(0);
 	}
 
+	private static <T> List<List<T>> partition(Collection<T> values, int size) {
+		List<List<T>> chunks = new ArrayList<List<T>>();
+		List<T> chunk = new ArrayList<T>();
+		for (T value : values) {
+			if (size > 0 && chunk.size() == size) {
+				chunks.add(chunk);
+				chunk = new ArrayList<T>();
+			}
+			chunk.add(value);
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
 }
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.storage;
+
+/**
+ * Documents and bytes physically removed from the storage
+ */
+public class PurgeResult {
+
+	private final long documents;
+
+	private final long bytes;
+
+	public PurgeResult(long documents, long bytes) {
+		this.documents = documents;
+		this.bytes = bytes;
+	}
+
+	public long getDocuments() {
+		return documents;
+	}
+
+	/**
+	 * @return BSON size of the removed documents
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+
+/**
+ * Iterator over the profiles of a list of users, in the order of the list,
+ * reading the profiles of a chunk of users at a time. When restricted to a
+ * profileId, users without the profile have a null entry.
+ */
+abstract class UserChunkIterator implements Iterator<ExtendedProfile> {
+
+	private final List<String> userIds;
+
+	private final int chunkSize;
+
+	private final boolean singleProfile;
+
+	private int offset;
+
+	private Iterator<ExtendedProfile> chunk;
+
+	UserChunkIterator(List<String> userIds, int chunkSize, boolean singleProfile) {
+		this.userIds = userIds;
+		this.chunkSize = chunkSize;
+		this.singleProfile = singleProfile;
+	}
+
+	/**
+	 * @param userIds
+	 * @return the profiles of the users, in no particular order
+	 */
+	protected abstract List<ExtendedProfile> findProfiles(LinkedHashSet<String> userIds);
+
+	@Override
+	public boolean hasNext() {
+		while ((chunk == null || !chunk.hasNext()) && offset < userIds.size()) {
+			List<String> chunkIds = userIds.subList(offset, Math.min(offset + chunkSize, userIds.size()));
+			offset += chunkIds.size();
+			chunk = order(chunkIds, findProfiles(new LinkedHashSet<String>(chunkIds))).iterator();
+		}
+		return chunk != null && chunk.hasNext();
+	}
+
+	@Override
+	public ExtendedProfile next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return chunk.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	private List<ExtendedProfile> order(List<String> chunkIds, List<ExtendedProfile> found) {
+		Map<String, List<ExtendedProfile>> byUser = new HashMap<String, List<ExtendedProfile>>();
+		for (ExtendedProfile p : found) {
+			List<ExtendedProfile> userProfiles = byUser.get(p.getUserId());
+			if (userProfiles == null) {
+				userProfiles = new ArrayList<ExtendedProfile>();
+				byUser.put(p.getUserId(), userProfiles);
+			}
+			userProfiles.add(p);
+		}
+		List<ExtendedProfile> profiles = new ArrayList<ExtendedProfile>(found.size());
+		for (String userId : chunkIds) {
+			List<ExtendedProfile> userProfiles = byUser.get(userId);
+			if (singleProfile) {
+				profiles.add(userProfiles == null ? null : userProfiles.get(0));
+			} else if (userProfiles != null) {
+				profiles.addAll(userProfiles);
+			}
+		}
+		return profiles;
+	}
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExpiringCacheTest {
+
+	@Test
+	public void sizeEviction() {
+		ExpiringCache<String, String> cache = new ExpiringCache<String, String>(2, 60000);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		// a becomes the most recently used
+		Assert.assertEquals("1", cache.get("a"));
+		cache.put("c", "3");
+
+		Assert.assertEquals(2, cache.size());
+		Assert.assertNull(cache.get("b"));
+		Assert.assertEquals("1", cache.get("a"));
+		Assert.assertEquals("3", cache.get("c"));
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertEquals(3, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void ttlEviction() throws InterruptedException {
+		ExpiringCache<String, String> cache = new ExpiringCache<String, String>(10, 50);
+		cache.put("a", "1");
+		Assert.assertEquals("1", cache.get("a"));
+		Thread.sleep(100);
+		Assert.assertNotNull(cache.peek("a"));
+		Assert.assertNull(cache.get("a"));
+		Assert.assertNull(cache.peek("a"));
+		Assert.assertEquals(1, cache.getEvictions());
+	}
+
+	@Test
+	public void entryTtl() throws InterruptedException {
+		ExpiringCache<String, String> cache = new ExpiringCache<String, String>(10, 60000);
+		cache.put("a", "1", 50);
+		cache.put("b", "2");
+		Thread.sleep(100);
+		Assert.assertNull(cache.get("a"));
+		Assert.assertEquals("2", cache.get("b"));
+	}
+
+	@Test
+	public void invalidate() {
+		ExpiringCache<String, String> cache = new ExpiringCache<String, String>(10, 60000);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.invalidate("a");
+		Assert.assertNull(cache.get("a"));
+		Assert.assertEquals("2", cache.get("b"));
+		cache.invalidateAll();
+		Assert.assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void removalListener() {
+		ExpiringCache<String, String> cache = new ExpiringCache<String, String>(2, 60000);
+		final List<String> removed = new ArrayList<String>();
+		cache.setRemovalListener(new ExpiringCache.RemovalListener<String, String>() {
+			@Override
+			public void removed(String key, String value) {
+				removed.add(key + "=" + value);
+			}
+		});
+		cache.put("a", "1");
+		cache.put("a", "2");
+		cache.put("b", "3");
+		cache.put("c", "4");
+		cache.invalidate("b");
+		cache.invalidate("missing");
+		cache.invalidateAll();
+		Assert.assertEquals(4, removed.size());
+		Assert.assertEquals("a=1", removed.get(0));
+		Assert.assertEquals("a=2", removed.get(1));
+		Assert.assertEquals("b=3", removed.get(2));
+		Assert.assertEquals("c=4", removed.get(3));
+	}
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.zip.GZIPOutputStream;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfile;
+import eu.trentorise.smartcampus.profileservice.model.ExtendedProfiles;
+
+public class ExtendedProfilesDecoderTest {
+
+	private ExtendedProfiles profiles() {
+		ExtendedProfile profile = new ExtendedProfile();
+		profile.setId("p1");
+		profile.setUserId("10");
+		profile.setProfileId("preferences");
+		profile.setContent(Collections.<String, Object> singletonMap("lang", "it"));
+		ExtendedProfiles profiles = new ExtendedProfiles();
+		profiles.setProfiles(Arrays.asList(profile, null));
+		profiles.setNext("p1");
+		return profiles;
+	}
+
+	@Test
+	public void decodeJsonAndSmile() throws IOException {
+		byte[] json = new ObjectMapper().writeValueAsBytes(profiles());
+		byte[] smile = new ObjectMapper(new SmileFactory()).writeValueAsBytes(profiles());
+		Assert.assertTrue(smile.length < json.length);
+
+		ExtendedProfiles decoded = ExtendedProfilesDecoder.decode(new ByteArrayInputStream(smile),
+				ExtendedProfilesDecoder.SMILE, null);
+		Assert.assertEquals(2, decoded.getProfiles().size());
+		Assert.assertEquals("it", decoded.getProfiles().get(0).getContent().get("lang"));
+		Assert.assertNull(decoded.getProfiles().get(1));
+		Assert.assertEquals("p1", decoded.getNext());
+
+		decoded = ExtendedProfilesDecoder.decode(new ByteArrayInputStream(json), "application/json;charset=UTF-8",
+				null);
+		Assert.assertEquals("10", decoded.getProfiles().get(0).getUserId());
+	}
+
+	@Test
+	public void iterateGzip() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		new ObjectMapper(new SmileFactory()).writeValue(gzip, profiles());
+		gzip.close();
+
+		Iterator<ExtendedProfile> iterator = ExtendedProfilesDecoder.iterate(
+				new ByteArrayInputStream(bytes.toByteArray()), ExtendedProfilesDecoder.SMILE, "gzip");
+		Assert.assertTrue(iterator.hasNext());
+		Assert.assertEquals("preferences", iterator.next().getProfileId());
+		Assert.assertTrue(iterator.hasNext());
+		Assert.assertNull(iterator.next());
+		Assert.assertFalse(iterator.hasNext());
+	}
+}
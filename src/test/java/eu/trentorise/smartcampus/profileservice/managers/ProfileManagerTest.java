@@ -18,6 +18,7 @@ package eu.trentorise.smartcampus.profileservice.managers;
 import it.unitn.disi.sweb.webapi.client.WebApiException;
 import it.unitn.disi.sweb.webapi.model.smartcampus.social.User;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -57,6 +58,9 @@ public class ProfileManagerTest {
 	@Autowired
 	SocialEngineOperation socialOperation;
 
+	@Autowired
+	SocialLinkManager socialLinkManager;
+
 	@Test
 	public void crudExtendedProfile() throws AlreadyExistException, SmartCampusException, WebApiException,
 			NotFoundException, ProfileServiceException {
@@ -130,6 +134,96 @@ public class ProfileManagerTest {
 
 	}
 	
+	@Test
+	public void extProfilesByUsers() throws DataException {
+		// cleaning
+		for (String userId : new String[] { "20", "25" }) {
+			for (ExtendedProfile extP : storage.findExtendedProfiles(userId)) {
+				storage.deleteExtendedProfile(extP.getId());
+			}
+		}
+
+		for (String userId : new String[] { "20", "25" }) {
+			ExtendedProfile profile = new ExtendedProfile();
+			profile.setUserId(userId);
+			profile.setProfileId("preferences");
+			profile.setContent(new HashMap<String, Object>());
+			storage.storeObject(profile);
+		}
+
+		List<ExtendedProfile> list = storage.findExtendedProfilesByUsers(Arrays.asList("20", "25", "30"), "preferences");
+		Assert.assertEquals(2, list.size());
+		list = storage.findExtendedProfilesByUsers(Arrays.asList("20", "25"), "other");
+		Assert.assertTrue(list.isEmpty());
+	}
+
+	@Test
+	public void duplicateCreate() throws AlreadyExistException, WebApiException, DataException,
+			SmartCampusException, ProfileServiceException {
+		// cleaning
+		for (ExtendedProfile extP : storage.findExtendedProfiles("35")) {
+			storage.deleteExtendedProfile(extP.getId());
+		}
+		User socialUser = socialOperation.createUser();
+		try {
+			eu.trentorise.smartcampus.social.model.User u = new eu.trentorise.smartcampus.social.model.User();
+			u.setId("35");
+			u.setSocialId(socialUser.getId().toString());
+
+			ExtendedProfile profile = new ExtendedProfile();
+			profile.setUserId("35");
+			profile.setProfileId("preferences");
+			profile.setContent(new HashMap<String, Object>());
+			profile = profileManager.create(u, profile);
+			Assert.assertEquals(profile.getId(), storage.findProfileKeyOwner("35", "preferences"));
+
+			ExtendedProfile duplicate = new ExtendedProfile();
+			duplicate.setUserId("35");
+			duplicate.setProfileId("preferences");
+			duplicate.setContent(new HashMap<String, Object>());
+			try {
+				profileManager.create(u, duplicate);
+				Assert.fail("duplicate profile created");
+			} catch (AlreadyExistException e) {
+			}
+			Assert.assertEquals(1, storage.findExtendedProfiles("35").size());
+
+			Assert.assertTrue(profileManager.deleteExtendedProfile(profile));
+			Assert.assertNull(storage.findProfileKeyOwner("35", "preferences"));
+		} finally {
+			socialOperation.deleteUser(socialUser.getId());
+		}
+	}
+
+	@Test
+	public void asyncSocialLink() throws WebApiException, DataException, SmartCampusException {
+		// cleaning
+		for (ExtendedProfile extP : storage.findExtendedProfiles("30")) {
+			storage.deleteExtendedProfile(extP.getId());
+		}
+		User socialUser = socialOperation.createUser();
+		try {
+			eu.trentorise.smartcampus.social.model.User u = new eu.trentorise.smartcampus.social.model.User();
+			u.setId("30");
+			u.setSocialId(socialUser.getId().toString());
+
+			ExtendedProfile profile = new ExtendedProfile();
+			profile.setUserId("30");
+			profile.setProfileId("preferences");
+			profile.setContent(new HashMap<String, Object>());
+			storage.storeObject(profile);
+
+			socialLinkManager.linkLater(u, profile);
+			Assert.assertTrue(socialLinkManager.reconcile() > 0);
+
+			ExtendedProfile stored = storage.findExtendedProfile("30", "preferences");
+			Assert.assertNotNull(stored.getSocialId());
+			Assert.assertTrue(profileManager.deleteExtendedProfile(stored));
+		} finally {
+			socialOperation.deleteUser(socialUser.getId());
+		}
+	}
+
 	@Test
 	public void extProfileShare() throws AlreadyExistException, SmartCampusException, WebApiException,
 			DataException, ProfileServiceException {
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.security;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+public class MappedResourceFilterTest {
+
+	private MappedResourceFilter filter;
+
+	private boolean proceeded;
+
+	private final FilterChain chain = new FilterChain() {
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response) throws IOException,
+				ServletException {
+			proceeded = true;
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		filter = new MappedResourceFilter();
+		filter.setMatcher(new ResourceMappingMatcher(new ClassPathResource("resourceList.xml")));
+		proceeded = false;
+	}
+
+	@After
+	public void tearDown() {
+		SecurityContextHolder.clearContext();
+	}
+
+	private static void authenticate(String scope) {
+		DefaultAuthorizationRequest request = new DefaultAuthorizationRequest("client",
+				Collections.singleton(scope));
+		SecurityContextHolder.getContext().setAuthentication(new OAuth2Authentication(request, null));
+	}
+
+	private static MockHttpServletRequest request(String method, String path) {
+		MockHttpServletRequest request = new MockHttpServletRequest(method, "/profileservice" + path);
+		request.setContextPath("/profileservice");
+		return request;
+	}
+
+	@Test
+	public void grantedScope() throws Exception {
+		authenticate("smartcampus.extprofile.me.preferences.read");
+		MockHttpServletRequest request = request("GET", "/extprofile/me/preferences");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(request, response, chain);
+		Assert.assertTrue(proceeded);
+		Assert.assertEquals("smartcampus.extprofile.me.preferences.read",
+				request.getAttribute(MappedResourceFilter.SCOPE_ATTRIBUTE));
+	}
+
+	@Test
+	public void missingScope() throws Exception {
+		authenticate("smartcampus.extprofile.me.preferences.read");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(request("PUT", "/extprofile/me/preferences"), response, chain);
+		Assert.assertFalse(proceeded);
+		Assert.assertEquals(403, response.getStatus());
+	}
+
+	@Test
+	public void unmappedPath() throws Exception {
+		authenticate("smartcampus.extprofile.me.read");
+		MockHttpServletRequest request = request("GET", "/extprofile/other");
+		filter.doFilter(request, new MockHttpServletResponse(), chain);
+		Assert.assertTrue(proceeded);
+		Assert.assertNull(request.getAttribute(MappedResourceFilter.SCOPE_ATTRIBUTE));
+	}
+}
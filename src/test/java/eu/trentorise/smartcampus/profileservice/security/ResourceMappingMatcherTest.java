@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.security;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+public class ResourceMappingMatcherTest {
+
+	private ResourceMappingMatcher matcher() throws IOException {
+		return new ResourceMappingMatcher(new ClassPathResource("resourceList.xml"));
+	}
+
+	@Test
+	public void resolveScopes() throws IOException {
+		ResourceMappingMatcher matcher = matcher();
+		Assert.assertEquals("smartcampus.extprofile.me.read", matcher.resolveScope("GET", "/extprofile/me"));
+		Assert.assertEquals("smartcampus.extprofile.me.preferences.read",
+				matcher.resolveScope("GET", "/extprofile/me/preferences"));
+		Assert.assertEquals("smartcampus.extprofile.me.preferences.write",
+				matcher.resolveScope("PUT", "/extprofile/me/preferences"));
+		Assert.assertEquals("smartcampus.extprofile.write.my.app",
+				matcher.resolveScope("DELETE", "/extprofile/app/10/my.app"));
+		Assert.assertEquals("smartcampus.extprofile.all.preferences.read",
+				matcher.resolveScope("GET", "/extprofile/all/preferences/"));
+	}
+
+	@Test
+	public void literalsBeforeVariables() throws IOException {
+		ResourceMappingMatcher matcher = matcher();
+		Assert.assertEquals("smartcampus.extprofile.batch.write", matcher.resolveScope("POST", "/extprofile/batch"));
+		Assert.assertNull(matcher.resolveScope("GET", "/extprofile/batch"));
+	}
+
+	@Test
+	public void unmapped() throws IOException {
+		ResourceMappingMatcher matcher = matcher();
+		Assert.assertNull(matcher.resolveScope("GET", "/extprofile/other"));
+		Assert.assertNull(matcher.resolveScope("GET", "/extprofile/me/preferences/more"));
+		Assert.assertNull(matcher.resolveScope("POST", "/extprofile/shared/preferences/x"));
+	}
+}
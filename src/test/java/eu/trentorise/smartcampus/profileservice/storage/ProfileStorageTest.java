@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright 2012-2013 Trento RISE
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ ******************************************************************************/
+package eu.trentorise.smartcampus.profileservice.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.mongodb.DBObject;
+
+public class ProfileStorageTest {
+
+	private static Map<String, Object> map(Object... entries) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		for (int i = 0; i < entries.length; i += 2) {
+			map.put((String) entries[i], entries[i + 1]);
+		}
+		return map;
+	}
+
+	private static DBObject toUpdate(Map<String, Object> patch, Map<String, Object> target) {
+		Update update = new Update();
+		ProfileStorage.toUpdate("content.content", patch, target, update);
+		return update.getUpdateObject();
+	}
+
+	@Test
+	public void mergeObjects() {
+		DBObject update = toUpdate(map("a", map("b", 1, "c", null)), map("a", map("b", 0, "c", 2)));
+		Assert.assertEquals(map("content.content.a.b", 1), update.get("$set"));
+		Assert.assertEquals(map("content.content.a.c", 1), update.get("$unset"));
+	}
+
+	@Test
+	public void replaceScalarWithObject() {
+		DBObject update = toUpdate(map("a", map("b", map("c", 1, "d", null))), map("a", "text"));
+		Map<String, Object> expected = map("b", map("c", 1));
+		Assert.assertEquals(map("content.content.a", expected), update.get("$set"));
+		Assert.assertNull(update.get("$unset"));
+	}
+
+	@Test
+	public void setMissingObject() {
+		DBObject update = toUpdate(map("a", map("b", 1)), null);
+		Assert.assertEquals(map("content.content.a", map("b", 1)), update.get("$set"));
+	}
+
+	@Test
+	public void replaceObjectWithScalar() {
+		DBObject update = toUpdate(map("a", 1), map("a", map("b", 1)));
+		Assert.assertEquals(map("content.content.a", 1), update.get("$set"));
+	}
+}